@@ -33,6 +33,17 @@ public class Library {
             System.out.print(n);
         }
 
+		public static void printRepeat(String s, int n) {
+			if(n <= 0 || s.isEmpty()) return;
+			// print a few thousand characters at a time
+			int perChunk = Math.min(n, Math.max(1, 8192 / s.length()));
+			StringBuilder chunk = new StringBuilder(perChunk * s.length());
+			for(int i = 0; i < perChunk; i++) chunk.append(s);
+			String text = chunk.toString();
+			for(; n >= perChunk; n -= perChunk) System.out.print(text);
+			System.out.print(text.substring(0, n * s.length()));
+		}
+
         public static int readInt() {
             return scanInput.nextInt();
         }
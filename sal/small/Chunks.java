@@ -0,0 +1,145 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Token.*;
+
+/** Splitting a program into parts, each small enough to be generated as a method of its own.
+ *
+ * HotSpot won't compile a method of more than 8000 bytes of bytecode, and no method may have more than 64K bytes.
+ * The top level statements of a program are divided into chunks whose estimated size is under a limit
+ * (a single statement bigger than that has a chunk to itself), and main calls a method for each chunk in turn.
+ * A variable declared at the top level of one chunk and used in another must be a static field.
+ */
+public class Chunks {
+
+    /** Size (in estimated bytes of bytecode) which a chunk should not exceed. */
+    public static int chunkSize = 8000;
+
+    /** The most bytes of bytecode a method can have. */
+    static final int MAX_METHOD = 65535;
+
+    /**
+     * Estimate the size of the code for a statement or expression - generous, so that chunks end up smaller than estimated.
+     * @param t  any tree.
+     * @return an estimate in bytes.
+     */
+    static int codeSize(Tree<Token> t) {
+        if(t == null) return 0;
+        int n = 4;      // allows for a load with an operand, or a call, or a jump
+        for(int i = 0; i < t.children(); i++) n += codeSize(t.child(i));
+        if(t.token() == WHILE) n += codeSize(t.child(0));   // a while's test is generated twice
+        return n;
+    }
+
+    /**
+     * Divide a program into chunks.
+     * @param program  AST for the program.
+     * @param limit  estimated size for each chunk.
+     * @return a statement list for each chunk, in order.
+     */
+    static List<Tree<Token>> split(Tree<Token> program, int limit) {
+        List<Tree<Token>> chunks = new ArrayList<>();
+        if(program.token() != STATEMENTLIST) {
+            chunks.add(program);
+            return chunks;
+        }
+        Tree<Token> chunk = Tree.list(STATEMENTLIST);
+        int size = 0;
+        for(Tree<Token> s : program.allChildren()) {
+            int n = codeSize(s);
+            if(size > 0 && size + n > limit) {
+                chunks.add(chunk);
+                chunk = Tree.list(STATEMENTLIST);
+                size = 0;
+            }
+            chunk.addChild(s);
+            size += n;
+        }
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * Find the variables which chunks must share.
+     * @param chunks  the chunks of a program.
+     * @return names of variables declared at the top level of one chunk and used in another.
+     */
+    static Set<String> sharedVariables(List<Tree<Token>> chunks) {
+        // the chunk declaring each top level variable
+        Map<String, Integer> declaredIn = new HashMap<>();
+        for(int i = 0; i < chunks.size(); i++) declarations(chunks.get(i), i, declaredIn);
+        Set<String> shared = new LinkedHashSet<>();
+        for(int i = 0; i < chunks.size(); i++) {
+            Set<String> used = new LinkedHashSet<>();
+            names(chunks.get(i), used);
+            for(String name : used) {
+                Integer declared = declaredIn.get(name);
+                if(declared != null && declared != i) shared.add(name);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Find the variables declared at the top level of a program (not inside an if, loop or block).
+     * @param program  AST for the program.
+     * @return their names.
+     */
+    static Set<String> topLevelVariables(Tree<Token> program) {
+        Map<String, Integer> declaredIn = new LinkedHashMap<>();
+        declarations(program, 0, declaredIn);
+        return declaredIn.keySet();
+    }
+
+    // record the variables declared by statements at the top level (read and print statements are lists of statements)
+    private static void declarations(Tree<Token> s, int chunk, Map<String, Integer> declaredIn) {
+        switch(s.token()) {
+            case STATEMENTLIST:
+                for(Tree<Token> t : s.allChildren()) declarations(t, chunk, declaredIn);
+                return;
+            case ASSIGN:
+                declaredIn.putIfAbsent(s.child(0).toString(), chunk);
+                return;
+            case READ_INT:
+            case READ_STR:
+                declaredIn.putIfAbsent(s.toString(), chunk);
+                return;
+        }
+    }
+
+    // add the names of all the variables read or written in t
+    private static void names(Tree<Token> t, Set<String> names) {
+        if(t == null) return;
+        switch(t.token()) {
+            case IDENTIFIER:
+            case READ_INT:
+            case READ_STR:
+                names.add(t.toString());
+                return;
+            default:
+                for(int i = 0; i < t.children(); i++) names(t.child(i), names);
+        }
+    }
+}
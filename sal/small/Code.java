@@ -20,6 +20,7 @@ import sal.util.ErrorStream;
 
 import java.io.PrintStream;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Map;
 
 import static sal.small.Scope.*;
@@ -63,6 +64,12 @@ public class Code {
      *  Example {@code emit("swap");}
      */
     public static void emit(String code) {
+        int space = code.indexOf(' ');
+        if(space < 0) {
+            stack(code, "");
+        } else {
+            stack(code.substring(0, space), code.substring(space + 1));
+        }
         emitf("  %s\n", code);
     }
 
@@ -74,6 +81,7 @@ public class Code {
      * Example {@code emit("new", "java/util/Scanner");}
      */
     public static void emit(String code, String operand) {
+        stack(code, operand);
         emitf("  %s %s\n", code, operand);
     }
 
@@ -87,8 +95,78 @@ public class Code {
     }
 
 
+///////////////////////////////////////////////////////////////////////
+// keeping track of the depth of the operand stack, for .limit stack
+
+private static int depth = 0;
+private static int maxDepth = 0;
+private static boolean reachable = true;
+
+// depth of the stack on each jump to a label
+private static Map<Label, Integer> labelDepth = new HashMap<>();
+
+// how each instruction changes the depth of the stack (invokes are worked out from their signatures)
+private static Map<String, Integer> stackEffect = new HashMap<>();
+
+	static {
+		for(String op : new String[]{"iconst_m1", "iconst_0", "iconst_1", "iconst_2", "iconst_3", "iconst_4", "iconst_5",
+									 "bipush", "sipush", "ldc", "iload", "aload", "getstatic", "dup", "dup_x1", "new"})
+			stackEffect.put(op, 1);
+		for(String op : new String[]{"istore", "astore", "putstatic", "pop",
+									 "iadd", "isub", "imul", "idiv", "irem", "ishl", "ishr", "iushr", "iand", "ior", "ixor",
+									 "ifeq", "ifne", "iflt", "ifle", "ifgt", "ifge"})
+			stackEffect.put(op, -1);
+		for(String op : new String[]{"if_icmpeq", "if_icmpne", "if_icmplt", "if_icmple", "if_icmpgt", "if_icmpge"})
+			stackEffect.put(op, -2);
+		for(String op : new String[]{"ineg", "swap", "goto", "nop", "iinc", "return"})
+			stackEffect.put(op, 0);
+		stackEffect.put("dup2", 2);
+	}
+
+	/**
+	 * Start counting the stack depth for a new method.
+	 */
+	public static void startMethod() {
+		depth = maxDepth = 0;
+		reachable = true;
+		labelDepth.clear();
+	}
+
+	/**
+	 * @return the most values on the stack at once since {@link #startMethod()} - the value for .limit stack
+	 */
+	public static int maxStack() {
+		return maxDepth;
+	}
+
+	// account for an instruction
+	private static void stack(String code, String operand) {
+		if(code.startsWith("iload_") || code.startsWith("aload_") || code.startsWith("istore_") || code.startsWith("astore_"))
+			code = code.substring(0, code.indexOf('_'));
+		Integer effect = code.startsWith("invoke") ? invokeEffect(code, operand) : stackEffect.get(code);
+		if(effect == null) throw new IllegalArgumentException("No stack effect known for " + code);
+		depth += effect;
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	// stack effect of calling a method: pop the arguments (and object) push the result
+	private static int invokeEffect(String code, String signature) {
+		int args = code.equals("invokestatic") ? 0 : 1;
+		int i = signature.indexOf('(') + 1;
+		for(char c = signature.charAt(i); c != ')'; c = signature.charAt(i)) {
+			if(c == 'L') i = signature.indexOf(';', i);
+			if(c != '[') args++;	// an array type is counted with its element type
+			i++;
+		}
+		return (signature.charAt(i + 1) == 'V' ? 0 : 1) - args;
+	}
+
+
 private static Map<Token, String> opCode = new EnumMap(Token.class);
 
+// jumps comparing the top of the stack with 0
+private static Map<Token, String> zeroCompare = new EnumMap(Token.class);
+
 
 /** Set up library entries.
  *  Create a string containing instructions to call a library routine.
@@ -105,7 +183,7 @@ static void libCall(Token t, String s) {
         opCode.put(MINUS,  "isub");
         opCode.put(TIMES,  "imul");
         opCode.put(DIVIDE, "idiv");
-        opCode.put(MOD,    "imod");
+        opCode.put(MOD,    "irem");
         opCode.put(NEGATE,  "ineg");
         opCode.put(SHL,  	"ishl");
         opCode.put(SHR,  	"iushr");
@@ -120,6 +198,13 @@ static void libCall(Token t, String s) {
         opCode.put(EQ,    "if_icmpeq");
         opCode.put(NE,    "if_icmpne");
 
+        zeroCompare.put(GT,    "ifgt");
+        zeroCompare.put(GE,    "ifge");
+        zeroCompare.put(LT,    "iflt");
+        zeroCompare.put(LE,    "ifle");
+        zeroCompare.put(EQ,    "ifeq");
+        zeroCompare.put(NE,    "ifne");
+
 		// load values onto the stack
 		opCode.put(NUMBER, "ldc");
         opCode.put(STRING, "ldc");
@@ -144,9 +229,35 @@ static void libCall(Token t, String s) {
 		libCall(READ_STR,	"readStr()~"); 		// call java scanner to get a String
 		libCall(PRINT_STR,	"print(~)V");		// print String
 		libCall(PRINT_INT,	"print(I)V");		// print String
+		libCall(PRINT_REPEAT, "printRepeat(~I)V");	// print String n times
 		
     }
 
+	/**
+	 * Push an int constant onto the stack.
+	 * @param n the value to push.
+	 */
+	public static void loadInt(int n) {
+		// use the shortest instruction for the value - ldc needs a constant pool entry
+		if(n >= -1 && n <= 5) {
+			emit(n < 0 ? "iconst_m1" : "iconst_" + n);
+		} else if(n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+			emit("bipush", n);
+		} else if(n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+			emit("sipush", n);
+		} else {
+			emit(opCode.get(NUMBER), n);
+		}
+	}
+
+	/**
+	 * Push a string constant onto the stack.
+	 * @param s the (decoded) string to push.
+	 */
+	public static void loadString(String s) {
+		emit(opCode.get(STRING), Tree.StringLeaf.quote(s));
+	}
+
 	public static void emit(Token t, String s) {
 		if(t == IDENTIFIER) {
 			emit(getVar(s).getLoad());
@@ -177,11 +288,84 @@ static void libCall(Token t, String s) {
 	}	
 
 
+ 	/**
+	 * Check that a variable can be changed by iinc - only locals can.
+	 * @param varName  name of an int variable.
+	 * @return true if the variable exists and is a local.
+	 */
+	public static boolean canIncrement(String varName) {
+		return getVariable(varName) instanceof Local;
+	}
+
  	public static void	increment(String varName, int incDec) {
 		Variable v = getVar(varName);
-		emitf("  iinc %s  %d\n", v.toString(), incDec);
+		if(v instanceof Local) {
+			emitf("  iinc %s  %d\n", v.toString(), incDec);
+		} else {	// only locals have iinc
+			emit(v.getLoad());
+			loadInt(incDec);
+			emit(PLUS);
+			emit(v.getStore());
+		}
 	}
 	
+	/**
+	 * Multiply, divide or take the remainder of the int on the stack by a constant using shifts and adds,
+	 * for the constants where these do the same as imul, idiv or irem: x * &plusmn;(2^a &plusmn; 1) * 2^b, and
+	 * x / &plusmn;2^k and x % &plusmn;2^k (x is rounded towards 0 by adding 2^k - 1 when it is negative).
+	 * @param t  TIMES, DIVIDE or MOD.
+	 * @param n  the constant.
+	 * @return true if the code was written, false if the usual instruction is needed.
+	 */
+	public static boolean operateByConstant(Token t, int n) {
+		if(t == TIMES) {
+			if(n == 0 || n == 1 || n == -1) return false;
+			if(Integer.bitCount(n) == 1) {		// 2^k (including MIN_VALUE, which is 2^31 as far as ishl is concerned)
+				shift(SHL, Integer.numberOfTrailingZeros(n));
+				return true;
+			}
+			int m = Math.abs(n);
+			int shift = Integer.numberOfTrailingZeros(m);
+			int odd = m >>> shift;		// m = odd * 2^shift
+			boolean plusOne = Integer.bitCount(odd - 1) == 1;		// odd is 2^a + 1
+			if(!plusOne && odd != 1 && Integer.bitCount(odd + 1) != 1) return false;		// nor 1 nor 2^a - 1
+			if(odd != 1) {
+				emit("dup");
+				shift(SHL, Integer.numberOfTrailingZeros(plusOne ? odd - 1 : odd + 1));
+				if(!plusOne) emit(SWAP);
+				emit(plusOne ? PLUS : MINUS);
+			}
+			shift(SHL, shift);
+			if(n < 0) emit(NEGATE);
+			return true;
+		}
+		if(t != DIVIDE && t != MOD) return false;
+		if(n == Integer.MIN_VALUE || Integer.bitCount(Math.abs(n)) != 1 || Math.abs(n) == 1) return false;
+		int k = Integer.numberOfTrailingZeros(Math.abs(n));
+		if(t == MOD) emit("dup");		// x - (x / 2^k) * 2^k
+		// x + (2^k - 1 if x < 0)
+		emit("dup");
+		if(k > 1) shift(SHRS, 31);
+		shift(SHR, 32 - k);
+		emit(PLUS);
+		if(t == DIVIDE) {
+			shift(SHRS, k);
+			if(n < 0) emit(NEGATE);
+		} else {		// the sign of a remainder is the dividend's
+			loadInt(-1 << k);
+			emit("iand");
+			emit(MINUS);
+		}
+		return true;
+	}
+
+	// shift the int on the stack by a constant
+	private static void shift(Token t, int bits) {
+		if(bits == 0) return;
+		loadInt(bits);
+		emit(t);
+	}
+
     /**
      * Store a value from the stack using a descriptor.
      * @param var  Variable descriptor.
@@ -197,6 +381,10 @@ static void libCall(Token t, String s) {
      *
      */
     public static void setLabel(Label labelName) {
+        // the stack is as it was at the jumps here - only they can reach a label after a goto
+        Integer d = labelDepth.get(labelName);
+        if(d != null) depth = d;
+        reachable = true;
         emitf("%s:\n", labelName.toString());
     }
 
@@ -207,7 +395,10 @@ static void libCall(Token t, String s) {
      *
      */
     public static void jump(String jumpOpcode, Label labelName) {
+        if(!reachable) return;      // just after a goto (e.g. the end of an if branch which ends in 'break')
         emit(jumpOpcode, labelName.toString());
+        labelDepth.putIfAbsent(labelName, depth);
+        if(jumpOpcode.equals("goto")) reachable = false;
     }
 
     /**
@@ -217,7 +408,17 @@ static void libCall(Token t, String s) {
      *
      */
     public static void jump(Token t, Label labelName) {
-        emit(t, labelName.toString());
+        jump(opCode.get(t), labelName);
+    }
+
+    /**
+     * Jump to a label depending on how the value on the top of the stack compares with 0.
+     * @param t  a token for the comparison (e.g. GE for the sort of jump "ifge")
+     * @param labelName  label descriptor to jump to.
+     *
+     */
+    public static void jumpZero(Token t, Label labelName) {
+        jump(zeroCompare.get(t), labelName);
     }
 
     /**
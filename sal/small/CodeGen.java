@@ -19,8 +19,13 @@ import sal.util.Templater;
 import sal.util.ErrorStream;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static sal.small.Scope.*;
 import static sal.small.Descriptor.*;
@@ -37,6 +42,12 @@ import static sal.small.Code.*;
 
 public class CodeGen {
 
+    /** If set, main is split into methods of about {@link Chunks#chunkSize} bytes so HotSpot can compile them.
+     *  (It is split anyway if it would be too big for one method.)
+     */
+    public static boolean splitMain = false;
+
+
     /**
      * Writes (to the PrintStream provided by CodeWriter) a boilerplate Jasmin program in which is embedded the result of
      * generating code from the AST.
@@ -48,6 +59,18 @@ public class CodeGen {
          // Code needs to know the output stream  for all small 'emit' methods below.
          Code.setOutputStream(outputStream);
 
+         // variables which are static fields because of the storage policy
+         Set<String> statics = Storage.statics(tree);
+         Tree<Token> program = Storage.cacheInLoops(tree, statics);
+
+         // the parts of the program which are methods of their own (if any), and the variables they share
+         int size = Chunks.codeSize(program);
+         List<Tree<Token>> chunks = (size > (splitMain ? Chunks.chunkSize : Chunks.MAX_METHOD))
+                                  ? Chunks.split(program, Chunks.chunkSize) : new ArrayList<>();
+         if(chunks.size() < 2) chunks.clear();
+         statics.addAll(Chunks.sharedVariables(chunks));
+         int[] chunk = new int[1];	// the chunk being written
+
          Templater tr = new Templater(outputStream)
          {
 
@@ -59,14 +82,41 @@ public class CodeGen {
 
                      case "CLASSNAME" : print(className);  return;
 
+                     case "FIELDS":      // variables shared by the chunks or made static by the storage policy
+                                         for(String name : statics) {
+                                             Variable v = newStatic(name, className);
+                                             printf(".field static %s %s\n", fieldName(name), v.getType());
+                                         }
+                                         return;
+
                      case "CODE":       // we need an inner scope since code is generated as body of main()
-                                         beginScope();
+                                         beginMethod();
                                          // invent a mythical first arg
                                          newLocal("ARGS TO MAIN","[~");	// array of string (~ will be converted to string)
-                                         writeStatementCode(tree);
+                                         Graph graph = (GraphOptimise.isOn() && chunks.isEmpty() && statics.isEmpty()) ? Graph.build(program) : null;
+                                         if(graph != null) {
+                                             graph = GraphOptimise.program(graph);
+                                             Slots.plan(graph);	// share slots between variables which are not live at the same time
+                                             writeGraphCode(graph);
+                                         } else if(chunks.isEmpty()) {
+                                             Slots.plan(program);	// share slots between variables which are not live at the same time
+                                             writeStatementCode(program);
+                                         } else {
+                                             for(int i = 0; i < chunks.size(); i++) emit("invokestatic", className + "/" + chunkName(i) + "()V");
+                                         }
                                          endScope();
                                          return;
 
+                     case "METHOD":      print(chunkName(chunk[0]));  return;
+
+                     case "CHUNK":       beginMethod();
+                                         Slots.plan(chunks.get(chunk[0]));
+                                         writeStatementCode(chunks.get(chunk[0]));
+                                         endScope();
+                                         return;
+
+                     case "STACK":       print(maxStack());  return;
+
                      case "LOCALS":      //Integer n = getGlobal(MAX_LOCAL);
                                          print(getGlobal(MAX_LOCAL));
 
@@ -80,24 +130,51 @@ public class CodeGen {
 		String[] theText = new String[]{
             ".class public (~CLASSNAME~)\n\n",
             ".super java/lang/Object\n",
-            
+            "(~FIELDS~)",
+
             ".method public <init>()V\n",
-            ".limit stack 10\n",
+            ".limit stack 1\n",
             "    aload_0\n",
             "    invokespecial java/lang/Object/<init>()V\n",
             "    return\n",
             ".end method\n",
             ".method public static main([Ljava/lang/String;)V\n",
-            ".limit stack 10\n",
             "(~CODE~)",
             "    return\n",
+            ".limit stack (~STACK~)\n",
             ".limit locals (~LOCALS~)\n",
             ".end method\n",
             "\n" };
-            
+
+		// a method for each chunk
+		String[] chunkText = new String[]{
+            ".method static (~METHOD~)()V\n",
+            "(~CHUNK~)",
+            "    return\n",
+            ".limit stack (~STACK~)\n",
+            ".limit locals (~LOCALS~)\n",
+            ".end method\n",
+            "\n" };
+
+          beginScope();	// for the static fields
           for(String aLine : theText) tr.render(aLine);
+          for(chunk[0] = 0; chunk[0] < chunks.size(); chunk[0]++) {
+              for(String aLine : chunkText) tr.render(aLine);
+          }
+          endScope();
        }
 
+    // start the scope for the code of a method
+    static void beginMethod() {
+        beginScope();
+        putGlobal(MAX_LOCAL, 0);	// each method has its own locals
+        startMethod();
+    }
+
+    static String chunkName(int i) {
+        return "part" + (i + 1);
+    }
+
 
 		// small method for checking int/string types 
 
@@ -150,6 +227,11 @@ public class CodeGen {
  
             case ASSIGN: {
 					Tree<Token> var = tree.child(0);
+					Integer step = incrementOf(var, tree.child(1));
+					if(step != null) {		// v = v + constant etc.
+						increment(var.toString(), step);
+						return;
+					}
 					boolean stringVar = isStringVar(var);
 					boolean stringExp = writeExpressionCode(tree.child(1));
 					if(stringVar == stringExp) {
@@ -171,8 +253,7 @@ public class CodeGen {
 					Tree<Token> code = tree.child(i+1);
 					if(test != null) {	// not 'else' part
 						Label nextTest = newLabel("NEXT TEST");  // for jump to next elif/else 		
-						writeExpressionCode(test, INT_TYPE);
-						ifFalse(nextTest);
+						writeTestCode(test, false, nextTest);
 						writeStatementCode(code);
 						jump(endIf);
 						setLabel(nextTest);
@@ -189,14 +270,22 @@ public class CodeGen {
                 beginScope();
                 Label continueLabel = newLabel("NEXT LOOP");
                 Label breakLabel 	= newLabel("EXIT LOOP");
-                setLabel(continueLabel);	// jump back here for 'continue'
                 Tree<Token> testExpr = tree.child(0);
 				if(testExpr != null) {		// 'null' for do/end
-					writeExpressionCode(tree.child(0), INT_TYPE);  		// expression to test  
-					ifFalse(breakLabel);		// if not true, 'break'
+					/* the loop is 'rotated': the test is made once on the way in, then at the
+					   bottom of each iteration - so each iteration has one conditional jump and no goto
+					 */
+					Label startLabel = newLabel("START LOOP");
+					writeTestCode(testExpr, false, breakLabel);	// if not true, don't enter the loop
+					setLabel(startLabel);
+					writeStatementCode(tree.child(1)); 		// content of while
+					setLabel(continueLabel);	// 'continue' goes to just before the test
+					writeTestCode(testExpr, true, startLabel);	// if still true go round again
+				} else {
+					setLabel(continueLabel);	// jump back here for 'continue'
+					writeStatementCode(tree.child(1)); 		// content of do/end
+					jump(continueLabel);		// jump back to beginning
 				}
-                writeStatementCode(tree.child(1)); 		// content of while/do
-                jump(continueLabel);		// jump back to beginning
                 setLabel(breakLabel);		// outside while
                 endScope();
             }
@@ -219,8 +308,7 @@ public class CodeGen {
                 Tree<Token> test = tree.child(0);
                 if(test != null) {
 					// there is an until part test for it
-					writeExpressionCode(test, INT_TYPE);  	// code for test
-					ifFalse(startLabel);		// if test fails jump back to start
+					writeTestCode(test, false, startLabel);	// if test fails jump back to start
 				}
 				else {
 					jump(startLabel);
@@ -248,6 +336,13 @@ public class CodeGen {
 				 emit(isString ? PRINT_STR : PRINT_INT);
                 return;
 			}
+
+            case PRINT_REPEAT: {	// made by the optimiser - a string and the number of times to print it
+				 writeExpressionCode(tree.child(0), STR_TYPE);
+				 writeExpressionCode(tree.child(1), INT_TYPE);
+				 emit(PRINT_REPEAT);
+                return;
+			}
                 
 
             case READ_STR:
@@ -260,6 +355,194 @@ public class CodeGen {
 		}
 	}
 
+	/**
+	 * Generate code for a program's control flow graph, which is not in SSA form.
+	 * The blocks are written in the graph's order, so a block going to the one written after it needs no goto
+	 * (and a block ending in a test needs only one conditional jump if either way is the next block).
+	 * @param graph  the graph.
+	 */
+	static void writeGraphCode(Graph graph) {
+		for(String name : graph.variables()) newLocal(name);	// each is declared once - there are no scopes left
+		List<Graph.Block> blocks = graph.blocks;
+		Map<Graph.Block, Label> labels = new HashMap<>();
+		for(Graph.Block b : blocks) labels.put(b, newLabel("BLOCK"));
+		Label end = newLabel("END PROGRAM");
+
+		// the blocks jumped to need their labels
+		Set<Label> targets = new HashSet<>();
+		for(int i = 0; i < blocks.size(); i++) {
+			Graph.Block b = blocks.get(i);
+			Graph.Block following = (i + 1 < blocks.size()) ? blocks.get(i + 1) : null;
+			Label next = (b.next == null) ? end : labels.get(b.next);
+			if(b.test != null && b.ifTrue == following) {
+				targets.add(next);
+				continue;
+			}
+			if(b.test != null) targets.add(labels.get(b.ifTrue));
+			if(b.next != following) targets.add(next);
+		}
+
+		for(int i = 0; i < blocks.size(); i++) {
+			Graph.Block b = blocks.get(i);
+			Graph.Block following = (i + 1 < blocks.size()) ? blocks.get(i + 1) : null;
+			if(targets.contains(labels.get(b))) setLabel(labels.get(b));
+			for(Tree<Token> s : b.code) writeStatementCode(s);
+			Label next = (b.next == null) ? end : labels.get(b.next);
+			if(b.test != null) {
+				if(b.ifTrue == following) {
+					writeTestCode(b.test, false, next);
+					continue;
+				}
+				writeTestCode(b.test, true, labels.get(b.ifTrue));
+			}
+			if(b.next != following) jump(next);
+		}
+		if(targets.contains(end)) setLabel(end);
+	}
+
+	/**
+	 * Generate code for the test in an if, while or until: jump to a label depending on the result.
+	 * Comparisons jump directly (with an if_icmpXX, or an ifXX after comparing strings)
+	 * rather than first making a 0 or 1 value and then testing it.
+	 * @param test    the test expression.
+	 * @param jumpIf  jump if the test gives this result, otherwise continue with the next instruction.
+	 * @param target  where to jump.
+	 */
+	static void writeTestCode(Tree<Token> test, boolean jumpIf, Label target) {
+		Token token = test.token();
+		switch(token) {
+			case NUMBER:	// known result: either always or never jump
+				if((((Tree.IntLeaf<Token>) test).value() != 0) == jumpIf) jump(target);
+				return;
+
+			case LE:
+			case LT:
+			case GE:
+			case GT:
+			case EQ:
+			case NE: {
+				Token relation = jumpIf ? token : inverse(token);
+				// comparing an int with 0 needs only the int on the stack
+				Tree<Token> zeroSide = isZero(test.child(1)) ? test.child(0) : isZero(test.child(0)) ? test.child(1) : null;
+				if(zeroSide != null && !Optimise.isStringExpression(zeroSide)) {
+					writeExpressionCode(zeroSide, INT_TYPE);
+					jumpZero(zeroSide == test.child(0) ? relation : mirror(relation), target);
+					return;
+				}
+				boolean child0IsString = writeExpressionCode(test.child(0));
+				boolean child1IsString = writeExpressionCode(test.child(1));
+				if(child0IsString != child1IsString) {
+					ErrorStream.log(child0IsString ? " <string> %s <int> is illegal.\n"
+												   : " <int> %s <string> is illegal.\n", token);
+				} else if(child0IsString) {
+					emit(COMPARE_STR);				// compare strings - the result is compared with 0
+					jumpZero(relation, target);
+				} else {
+					jump(relation, target);
+				}
+				return;
+			}
+
+			default:
+				writeExpressionCode(test, INT_TYPE);
+				if(jumpIf) ifTrue(target); else ifFalse(target);
+		}
+	}
+
+	static boolean isZero(Tree<Token> tree) {
+		return tree.token() == NUMBER && ((Tree.IntLeaf<Token>) tree).value() == 0;
+	}
+
+	/**
+	 * @param relation  a relational operator
+	 * @return the operator to use with the operands swapped, e.g. GT for LT.
+	 */
+	static Token mirror(Token relation) {
+		switch(relation) {
+			case LT:	return GT;
+			case GT:	return LT;
+			case LE:	return GE;
+			case GE:	return LE;
+			default:	return relation;	// EQ, NE
+		}
+	}
+
+	/**
+	 * @param relation  a relational operator
+	 * @return the operator giving the opposite result, e.g. GE for LT.
+	 */
+	static Token inverse(Token relation) {
+		switch(relation) {
+			case LT:	return GE;
+			case GE:	return LT;
+			case LE:	return GT;
+			case GT:	return LE;
+			case EQ:	return NE;
+			default:	return EQ;	// NE
+		}
+	}
+
+	/**
+	 * Check for an assignment which can be done by iinc: {@code v = v + c}, {@code v = c + v} or {@code v = v - c}
+	 * where v is an int local variable and c a constant which fits iinc (with 'wide' if needed).
+	 * @param var  variable assigned to.
+	 * @param exp  expression assigned.
+	 * @return the amount to add to var, or null if iinc can't be used.
+	 */
+	static Integer incrementOf(Tree<Token> var, Tree<Token> exp) {
+		Token token = exp.token();
+		if((token != PLUS && token != MINUS) || isStringVar(var) || !canIncrement(var.toString())) return null;
+		Tree<Token> left  = exp.child(0);
+		Tree<Token> right = exp.child(1);
+		if(token == PLUS && left.token() == NUMBER) {	// c + v
+			left = right;
+			right = exp.child(0);
+		}
+		if(left.token() != IDENTIFIER || !left.toString().equals(var.toString()) || right.token() != NUMBER) return null;
+		long step = ((Tree.IntLeaf<Token>) right).value();
+		if(token == MINUS) step = -step;
+		return (step >= Short.MIN_VALUE && step <= Short.MAX_VALUE) ? (int) step : null;
+	}
+
+	/**
+	 * Find the values joined by string concatenation: {@code ("a" + x) + (1 + 2)} gives "a", x and 1 + 2
+	 * (the last is an int addition, so isn't split).
+	 * @param tree  an expression.
+	 * @param parts  where the values are added, in order.
+	 */
+	static void concatParts(Tree<Token> tree, List<Tree<Token>> parts) {
+		if(tree.token() == PLUS && Optimise.isStringExpression(tree)) {
+			concatParts(tree.child(0), parts);
+			concatParts(tree.child(1), parts);
+		} else {
+			parts.add(tree);
+		}
+	}
+
+	/**
+	 * Join strings (and ints) with one StringBuilder, made big enough for the result if the values aren't too long,
+	 * rather than making a new String for each '+'.
+	 * (Jasmin makes version 45 class files, so invokedynamic string concatenation can't be used.)
+	 * @param parts  the values to join.
+	 */
+	static void writeConcatCode(List<Tree<Token>> parts) {
+		int capacity = 0;
+		for(Tree<Token> part : parts) {
+			capacity += (part.token() == STRING) ? Optimise.stringValue(part).length()
+					  : Optimise.isStringExpression(part) ? 16 : 11;	// 11 characters for any int
+		}
+		emit("new", "java/lang/StringBuilder");
+		emit("dup");
+		loadInt(Math.min(capacity, Fold.MAX_STRING));
+		emit("invokespecial", "java/lang/StringBuilder/<init>(I)V");
+		for(Tree<Token> part : parts) {
+			boolean isString = writeExpressionCode(part);
+			emit("invokevirtual", isString ? "java/lang/StringBuilder/append(Ljava/lang/String;)Ljava/lang/StringBuilder;"
+										   : "java/lang/StringBuilder/append(I)Ljava/lang/StringBuilder;");
+		}
+		emit("invokevirtual", "java/lang/StringBuilder/toString()Ljava/lang/String;");
+	}
+
 	public static void	writeExpressionCode(Tree<Token> tree, boolean needsString) {
 		boolean expIsString = writeExpressionCode(tree);
 		if(needsString != expIsString) emit(needsString ? TO_STR : LEN_STR);
@@ -271,10 +554,26 @@ public class CodeGen {
 		int kids = tree.children();
 		if(kids == 0) {
 		//  a leaf - must be Number, String or Identifier
-			emit(token, tree.toString());
-			return  (token == NUMBER) ? INT_TYPE
-					:(token == STRING) ? STR_TYPE
-					: isStringVar(tree);
+			switch(token) {
+				case NUMBER:
+					loadInt(((Tree.IntLeaf<Token>) tree).value());
+					return INT_TYPE;
+				case STRING:
+					loadString(((Tree.Leaf<Token, String>) tree).value());
+					return STR_TYPE;
+				default:
+					emit(token, tree.toString());
+					return isStringVar(tree);
+			}
+		}
+		// a chain of string concatenations is built in one StringBuilder
+		if(token == PLUS && Optimise.isStringExpression(tree)) {
+			List<Tree<Token>> parts = new ArrayList<>();
+			concatParts(tree, parts);
+			if(parts.size() > 2) {
+				writeConcatCode(parts);
+				return STR_TYPE;
+			}
 		}
 		// write code for first child and check type
 		boolean child0IsString = writeExpressionCode(tree.child(0));
@@ -318,6 +617,10 @@ public class CodeGen {
 		}
 			
 			// Now binary operations
+			if(!child0IsString && Optimise.isNumber(tree.child(1))
+			   && Code.operateByConstant(token, Optimise.intValue(tree.child(1)))) {
+				return INT_TYPE;	// done with shifts instead of * / or %
+			}
 			boolean child1IsString = writeExpressionCode(tree.child(1));
 			
 			switch(token) {
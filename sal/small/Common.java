@@ -0,0 +1,241 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Common subexpression elimination in straight line code (local value numbering).
+ *
+ * A basic block is a run of assignments, prints, reads, ++ and -- in one statement list - an if or a loop
+ * (whose code has labels) ends it.  An expression computed more than once in a block, with no change
+ * to its variables in between, is computed the first time into a temporary which is then used instead:
+ * {@code x = a * b + c  y = a * b + c} becomes {@code #1 = a * b + c  x = #1  y = #1}.
+ * Every expression of a statement is evaluated, so the first use is where the value would have been
+ * worked out anyway (even one that might divide by zero).
+ */
+public class Common {
+
+    /**
+     * Eliminate common subexpressions in each basic block of a program.
+     * @param tree  AST for the program.
+     * @return the changed AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        return inList(mapStatements(tree, Common::statement));
+    }
+
+    // an expression value available in a block
+    private static class Value {
+        final Tree<Token> key;      // the expression (from the block's Shared table)
+        int count = 1;      // times it is used
+        String temp;        // the temporary holding it, once computed
+
+        Value(Tree<Token> key) { this.key = key; }
+    }
+
+    // the values found while counting a block
+    private static class Values {
+        final Tree.Shared<Token> shapes = new Tree.Shared<>();
+        final Map<Tree<Token>, Value> available = new IdentityHashMap<>();
+        final Map<String, List<Value>> byVariable = new HashMap<>();     // the values using each variable
+        final List<Value> found = new ArrayList<>();        // the value of each non-trivial expression, in order
+    }
+
+    // the statement lists a block, if or loop holds (once the statements in them are done) - a list in a list is
+    // done with the list holding it, as its straight line code may be part of a block there
+    private static Tree<Token> statement(Tree<Token> s) {
+        switch(s.token()) {
+            case BLOCK:
+                return list(s);
+            case IF: {
+                Tree<Token> ifTree = Tree.list(IF);
+                boolean same = true;
+                for(int i = 0; i < s.children(); i += 2) {
+                    Tree<Token> code = inList(s.child(i + 1));
+                    same &= (code == s.child(i + 1));
+                    ifTree.addChild(s.child(i));
+                    ifTree.addChild(code);
+                }
+                return same ? s : ifTree;
+            }
+            case WHILE:
+            case UNTIL: {
+                Tree<Token> body = inList(s.child(1));
+                return (body == s.child(1)) ? s : Tree.list(s.token(), s.child(0), body);
+            }
+            default:
+                return s;
+        }
+    }
+
+    private static Tree<Token> inList(Tree<Token> s) {
+        return (s != null && s.token() == STATEMENTLIST) ? list(s) : s;
+    }
+
+    // a statement list, split into blocks of straight line code
+    private static Tree<Token> list(Tree<Token> s) {
+        Tree<Token> list = Tree.list(s.token());
+        List<Tree<Token>> block = new ArrayList<>();
+        for(Tree<Token> t : s.allChildren()) {
+            if(isStraight(t)) {
+                block.add(t);
+            } else {
+                block(block, list);
+                list.addChild(inList(t));
+            }
+        }
+        block(block, list);
+        if(list.children() != s.children()) return list;
+        for(int i = 0; i < s.children(); i++) {
+            if(list.child(i) != s.child(i)) return list;
+        }
+        return s;
+    }
+
+    // a statement without jumps or labels - a list of them (from print or read) counts as one
+    private static boolean isStraight(Tree<Token> s) {
+        switch(s.token()) {
+            case ASSIGN:
+            case PRINT:
+            case READ_INT:
+            case READ_STR:
+            case INCREMENT:
+            case DECREMENT:
+                return true;
+            case STATEMENTLIST:
+                for(Tree<Token> t : s.allChildren()) {
+                    if(!isStraight(t)) return false;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // rewrite a basic block (emptying it), adding the statements to list
+    private static void block(List<Tree<Token>> block, Tree<Token> list) {
+        if(block.isEmpty()) return;
+        // first count the uses of each value, recording the value found at each (non-trivial) expression
+        Values values = new Values();
+        for(Tree<Token> s : block) count(s, values);
+        // then make temporaries for those used more than once - the expressions are visited in the same order
+        int[] next = new int[1];
+        for(Tree<Token> s : block) list.addChild(rewrite(s, values.found, next));
+        block.clear();
+    }
+
+    private static void count(Tree<Token> s, Values values) {
+        switch(s.token()) {
+            case STATEMENTLIST:
+                for(Tree<Token> t : s.allChildren()) count(t, values);
+                return;
+            case ASSIGN:
+                countExpression(s.child(1), values);
+                changed(s.child(0).toString(), values);
+                return;
+            case PRINT:
+                countExpression(s.child(0), values);
+                return;
+            case READ_INT:
+            case READ_STR:
+                changed(s.toString(), values);
+                return;
+            default:            // ++, --
+                changed(s.child(0).toString(), values);
+        }
+    }
+
+    private static void countExpression(Tree<Token> e, Values values) {
+        if(worthATemporary(e)) {
+            Tree<Token> key = values.shapes.intern(e);
+            Value v = values.available.get(key);
+            if(v != null) {     // seen before - the parts of e are in v
+                v.count++;
+                values.found.add(v);
+                return;
+            }
+            v = new Value(key);
+            Set<String> uses = new HashSet<>();
+            variables(e, uses);
+            for(String name : uses) values.byVariable.computeIfAbsent(name, k -> new ArrayList<>()).add(v);
+            values.available.put(key, v);
+            values.found.add(v);
+        }
+        for(int i = 0; i < e.children(); i++) countExpression(e.child(i), values);
+    }
+
+    // values using a variable are no longer available once it changes
+    private static void changed(String name, Values values) {
+        List<Value> using = values.byVariable.remove(name);
+        if(using == null) return;
+        for(Value v : using) values.available.remove(v.key, v);
+    }
+
+    private static Tree<Token> rewrite(Tree<Token> s, List<Value> found, int[] next) {
+        switch(s.token()) {
+            case STATEMENTLIST: {
+                Tree<Token> list = Tree.list(STATEMENTLIST);
+                for(Tree<Token> t : s.allChildren()) {
+                    Tree<Token> u = rewrite(t, found, next);
+                    if(u.token() == STATEMENTLIST) {
+                        for(Tree<Token> w : u.allChildren()) list.addChild(w);
+                    } else {
+                        list.addChild(u);
+                    }
+                }
+                return list;
+            }
+            case ASSIGN:
+            case PRINT: {
+                Tree<Token> temps = Tree.list(STATEMENTLIST);
+                int last = s.children() - 1;
+                Tree<Token> e = rewrite(s.child(last), found, next, temps);
+                if(e == s.child(last)) return s;
+                Tree<Token> t = (last == 0) ? Tree.list(PRINT, e) : Tree.list(ASSIGN, s.child(0), e);
+                if(temps.children() == 0) return t;
+                temps.addChild(t);
+                return temps;
+            }
+            default:
+                return s;
+        }
+    }
+
+    // rewrite an expression, adding assignments to any new temporaries to temps
+    private static Tree<Token> rewrite(Tree<Token> e, List<Value> found, int[] next, Tree<Token> temps) {
+        Value v = null;
+        if(worthATemporary(e)) {
+            v = found.get(next[0]++);
+            if(v.temp != null) return variable(v.temp);
+        }
+        Tree<Token> copy = mapChildren(e, child -> rewrite(child, found, next, temps));
+        if(v != null && v.count > 1) {
+            v.temp = temporary(isStringExpression(e));
+            temps.addChild(node(ASSIGN, variable(v.temp), copy));
+            return variable(v.temp);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Removal of code which can never run.
+ *
+ * Once expressions are folded, an if test may be a constant: a false test's branch is removed, and a true test's
+ * branch becomes the else part (dropping the branches after it).  An if reduced to its else part becomes a block,
+ * as the if's own scope did.  {@code while 0} is removed, {@code while 1} becomes a do/end loop, and
+ * {@code do ... until 1} runs its body once so becomes a block (if nothing in it is a break or continue).
+ * Statements following one which never completes normally (break, continue, a loop with no way out,
+ * or an if whose branches all jump) are removed.
+ */
+public class DeadCode {
+
+    /**
+     * Remove the dead code in a program.
+     * @param tree  AST for the program.
+     * @return the changed AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        return mapStatements(tree, DeadCode::statement);
+    }
+
+    // a statement (whose inner statements are done) without its dead parts, or null if none of it can run
+    private static Tree<Token> statement(Tree<Token> s) {
+        Token token = s.token();
+        switch(token) {
+            case STATEMENTLIST:
+            case BLOCK:
+                for(int i = 0; i < s.children() - 1; i++) {
+                    if(!completes(s.child(i))) {        // the rest can't be reached
+                        Tree<Token> list = Tree.list(token);
+                        for(int j = 0; j <= i; j++) list.addChild(s.child(j));
+                        return list;
+                    }
+                }
+                return s;
+            case IF:
+                return ifStatement(s);
+            case WHILE: {
+                Tree<Token> test = s.child(0);
+                if(isNumber(test)) {
+                    if(intValue(test) == 0) return null;
+                    return Tree.list(UNTIL, null, s.child(1));      // as do/end
+                }
+                return s;
+            }
+            case UNTIL: {
+                Tree<Token> test = s.child(0);
+                Tree<Token> body = s.child(1);
+                if(isNumber(test)) {
+                    if(intValue(test) == 0) return Tree.list(UNTIL, null, body);       // until false - as do/end
+                    if(!jumpsOut(body, BREAK) && !jumpsOut(body, CONTINUE)) return Tree.list(BLOCK, body);
+                }
+                return s;
+            }
+            default:
+                return s;
+        }
+    }
+
+    private static Tree<Token> ifStatement(Tree<Token> s) {
+        Tree<Token> ifTree = Tree.list(IF);
+        boolean same = true;
+        for(int i = 0; i < s.children(); i += 2) {
+            Tree<Token> test = s.child(i);
+            if(isNumber(test)) {
+                same = false;
+                if(intValue(test) == 0) continue;       // never taken
+                test = null;        // always taken - the rest never are
+            }
+            ifTree.addChild(test);
+            ifTree.addChild(s.child(i + 1));
+            if(test == null) break;
+        }
+        if(same) return s;
+        if(ifTree.children() == 0) return null;
+        if(ifTree.child(0) == null) return Tree.list(BLOCK, ifTree.child(1));     // only the else part is left
+        return ifTree;
+    }
+
+    // false if control can never pass to the statement following s
+    private static boolean completes(Tree<Token> s) {
+        switch(s.token()) {
+            case BREAK:
+            case CONTINUE:
+                return false;
+            case STATEMENTLIST:
+            case BLOCK:
+                return s.children() == 0 || completes(s.child(s.children() - 1));
+            case IF:
+                if(s.child(s.children() - 2) != null) return true;     // no else part
+                for(int i = 1; i < s.children(); i += 2) {
+                    if(completes(s.child(i))) return true;
+                }
+                return false;
+            case WHILE:
+            case UNTIL:
+                return s.child(0) != null || jumpsOut(s.child(1), BREAK);
+            default:
+                return true;
+        }
+    }
+}
@@ -109,7 +109,7 @@ public class Descriptor {
 
         public Variable(String asmName, String typeName) {
             super(asmName);
-            this.typeName = typeName.equals("~") ? "Ljava.lang.String;" : typeName;
+            this.typeName = typeName.equals("~") ? "Ljava/lang/String;" : typeName;
         }
 
         public String getType() {
@@ -167,13 +167,18 @@ public class Descriptor {
 			return prefix;
 		}
 
-        // by default this does getstatic
+        // locals 0 to 3 have their own one byte instructions (e.g. iload_2)
         public String getLoad() {
-            return  String.format("%sload %s", this.prefix, this.toString());
+            return  String.format(isShort() ? "%sload_%s" : "%sload %s", this.prefix, this.toString());
         }
 
         public String getStore() {
-            return  String.format("%sstore %s", this.prefix, this.toString());
+            return  String.format(isShort() ? "%sstore_%s" : "%sstore %s", this.prefix, this.toString());
+        }
+
+        boolean isShort() {
+            String slot = this.toString();
+            return slot.length() == 1 && slot.charAt(0) <= '3';
         }
 
     }
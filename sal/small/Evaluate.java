@@ -0,0 +1,289 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Running the start of a program at compile time.
+ *
+ * The program's top level statements are interpreted in turn until one reads input, would fail when run
+ * (dividing by zero, a type error...), or takes more than {@link #budget} steps in all.
+ * The statements which ran are replaced by printing what they printed, in a few long string constants,
+ * then assigning the values they left in the top level variables, and the rest of the program follows.
+ * A program which reads nothing usually becomes just its output.  Values are worked out as the
+ * generated code would (see {@link Fold#arithmetic} and {@link CodeGen#writeExpressionCode(Tree)}).
+ * This is the first of {@link Optimise}'s passes, made at level 2 (see {@link Passes}).
+ */
+public class Evaluate {
+
+    /** Most statements and expressions evaluated at compile time. */
+    public static int budget = 1000000;
+
+    /** Most characters of output (or in a string) produced at compile time. */
+    public static int maxOutput = 1 << 18;
+
+    // thrown when the program can't be run any further at compile time
+    private static class Stop extends RuntimeException {
+        Stop() { super(null, null, false, false); }
+    }
+
+    // break and continue
+    private static class Jump extends RuntimeException {
+        final boolean isBreak;
+        Jump(boolean isBreak) { super(null, null, false, false); this.isBreak = isBreak; }
+    }
+
+    private static final Stop STOP = new Stop();
+    private static final Jump BREAK_JUMP = new Jump(true);
+    private static final Jump CONTINUE_JUMP = new Jump(false);
+
+    private final Deque<Map<String, Object>> scopes = new ArrayDeque<>();     // values are Integer or String
+    private final StringBuilder output = new StringBuilder();
+    private int steps = 0;
+    private int loops = 0;      // loops the current statement is in
+
+    private Evaluate() {
+        scopes.push(new LinkedHashMap<>());
+    }
+
+    /**
+     * Run as much of a program as possible.
+     * @param tree  AST for the program.
+     * @return its output so far and the rest of the program.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        if(tree.token() != STATEMENTLIST) return tree;
+        Evaluate run = new Evaluate();
+        Map<String, Object> globals = run.scopes.peek();
+        int done = 0;
+        for(Tree<Token> s : tree.allChildren()) {
+            Map<String, Object> before = new LinkedHashMap<>(globals);
+            int printed = run.output.length();
+            try {
+                run.statement(s);
+            } catch (Stop e) {      // undo the part done
+                globals.clear();
+                globals.putAll(before);
+                run.output.setLength(printed);
+                break;
+            }
+            done++;
+        }
+        if(done == 0) return tree;
+
+        Tree<Token> list = Tree.list(STATEMENTLIST);
+        for(Tree<Token> part : run.literal(run.output.toString()).allChildren()) list.addChild(Tree.list(PRINT, part));
+        if(done < tree.children()) {
+            for(Map.Entry<String, Object> v : globals.entrySet()) {
+                Object value = v.getValue();
+                Tree<Token> e = (value instanceof Integer) ? number((Integer) value) : run.join(run.literal((String) value));
+                list.addChild(node(ASSIGN, variable(v.getKey()), e));
+            }
+            for(int i = done; i < tree.children(); i++) list.addChild(tree.child(i));
+        }
+        return list;
+    }
+
+    // a string as a list of string literals, none too long for a constant
+    private Tree<Token> literal(String s) {
+        Tree<Token> parts = Tree.list(STATEMENTLIST);
+        for(int start = 0; start < s.length(); ) {
+            int end = Math.min(s.length(), start + Fold.MAX_STRING);
+            if(end < s.length() && Character.isHighSurrogate(s.charAt(end - 1))) end--;      // keep pairs together
+            parts.addChild(string(s.substring(start, end)));
+            start = end;
+        }
+        return parts;
+    }
+
+    // the parts of a string joined together
+    private Tree<Token> join(Tree<Token> parts) {
+        if(parts.children() == 0) return string("");
+        Tree<Token> e = parts.child(0);
+        for(int i = 1; i < parts.children(); i++) e = node(PLUS, e, parts.child(i));
+        return e;
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // statements
+
+    private void statement(Tree<Token> s) {
+        step();
+        Token token = s.token();
+        switch(token) {
+            case STATEMENTLIST:
+                for(Tree<Token> t : s.allChildren()) statement(t);
+                return;
+            case BLOCK:
+                scopes.push(new LinkedHashMap<>());
+                try {
+                    for(Tree<Token> t : s.allChildren()) statement(t);
+                } finally {
+                    scopes.pop();
+                }
+                return;
+            case ASSIGN: {
+                String name = s.child(0).toString();
+                Object value = expression(s.child(1));
+                if(isStringName(name) != (value instanceof String)) throw STOP;     // an error for the code generator
+                store(name, value);
+                return;
+            }
+            case INCREMENT:
+            case DECREMENT: {
+                String name = s.child(0).toString();
+                store(name, asInt(load(name)) + (token == INCREMENT ? 1 : -1));
+                return;
+            }
+            case PRINT:
+                print(expression(s.child(0)).toString());
+                return;
+            case PRINT_REPEAT: {
+                String text = (String) expression(s.child(0));
+                for(int n = asInt(expression(s.child(1))); n > 0; n--) print(text);
+                return;
+            }
+            case IF:
+                scopes.push(new LinkedHashMap<>());      // one scope for the whole if
+                try {
+                    for(int i = 0; i < s.children(); i += 2) {
+                        if(s.child(i) == null || isTrue(s.child(i))) {
+                            statement(s.child(i + 1));
+                            return;
+                        }
+                    }
+                } finally {
+                    scopes.pop();
+                }
+                return;
+            case WHILE:
+            case UNTIL: {
+                Tree<Token> test = s.child(0);
+                scopes.push(new LinkedHashMap<>());
+                loops++;
+                try {
+                    if(token == WHILE && test != null && !isTrue(test)) return;
+                    do {
+                        try {
+                            statement(s.child(1));
+                        } catch (Jump jump) {
+                            if(jump.isBreak) return;
+                        }
+                    } while(test == null || isTrue(test) == (token == WHILE));
+                } finally {
+                    loops--;
+                    scopes.pop();
+                }
+                return;
+            }
+            case BREAK:
+            case CONTINUE:
+                if(loops == 0) throw STOP;      // an error for the code generator
+                throw (token == BREAK) ? BREAK_JUMP : CONTINUE_JUMP;
+            default:        // read
+                throw STOP;
+        }
+    }
+
+    private void print(String s) {
+        if(output.length() + s.length() > maxOutput) throw STOP;
+        output.append(s);
+    }
+
+    private void step() {
+        if(++steps > budget) throw STOP;
+    }
+
+    private Object load(String name) {
+        for(Map<String, Object> scope : scopes) {
+            Object value = scope.get(name);
+            if(value != null) return value;
+        }
+        throw STOP;     // not declared
+    }
+
+    // store to a variable - declaring it in the current scope if it isn't found (as the code generator does)
+    private void store(String name, Object value) {
+        for(Map<String, Object> scope : scopes) {
+            if(scope.containsKey(name)) {
+                scope.put(name, value);
+                return;
+            }
+        }
+        scopes.peek().put(name, value);
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // expressions
+
+    // a test, which is an int - a string is tested by its length (see CodeGen.writeExpressionCode(Tree, boolean))
+    private boolean isTrue(Tree<Token> test) {
+        Object value = expression(test);
+        return (value instanceof String) ? !((String) value).isEmpty() : (Integer) value != 0;
+    }
+
+    private static int asInt(Object value) {
+        if(!(value instanceof Integer)) throw STOP;
+        return (Integer) value;
+    }
+
+    private Object expression(Tree<Token> e) {
+        step();
+        Token token = e.token();
+        switch(token) {
+            case NUMBER:        return intValue(e);
+            case STRING:        return stringValue(e);
+            case IDENTIFIER:    return load(e.toString());
+            default:
+        }
+        Object a = expression(e.child(0));
+        switch(token) {
+            case NEGATE:        return -asInt(a);
+            case TO_STR:        return Integer.toString(asInt(a));
+            case TO_INT:
+                if(!(a instanceof String)) throw STOP;
+                return Fold.toInt((String) a);
+            case LEN_STR:
+                if(!(a instanceof String)) throw STOP;
+                return ((String) a).length();
+            default:
+        }
+        Object b = expression(e.child(1));
+        boolean aIsString = a instanceof String;
+        boolean bIsString = b instanceof String;
+        if(token == PLUS && (aIsString || bIsString)) {
+            String s = a.toString() + b.toString();
+            if(s.length() > maxOutput) throw STOP;
+            return s;
+        }
+        if(aIsString || bIsString) {
+            if(!aIsString || !bIsString) throw STOP;
+            Integer result = Fold.compare(token, ((String) a).compareTo((String) b), 0);
+            if(result == null) throw STOP;
+            return result;
+        }
+        Integer result = Fold.arithmetic(token, (Integer) a, (Integer) b);
+        if(result == null) result = Fold.compare(token, (Integer) a, (Integer) b);
+        if(result == null) throw STOP;      // including division by zero
+        return result;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Constant folding and algebraic simplification of expressions.
+ *
+ * Operations on literals are done at compile time, exactly as the generated code would do them
+ * (so {@code >>} is an unsigned shift and {@code int "x"} gives Integer.MIN_VALUE), and identities such as
+ * {@code x + 0}, {@code x * 1} are removed.  Nothing is folded if it would hide a type error or
+ * a division by zero from the code generator or the running program.
+ */
+public class Fold {
+
+    /** String literals longer than this are not built at compile time (Jasmin constants are limited to 64K bytes). */
+    static final int MAX_STRING = 16384;
+
+    /**
+     * Fold every expression in a program.
+     * @param tree AST for the program.
+     * @return the folded AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        return mapExpressions(tree, Fold::expression);
+    }
+
+    /**
+     * Fold an expression.
+     * @param e  expression AST.
+     * @return e, or a simpler expression giving the same value.
+     */
+    public static Tree<Token> expression(Tree<Token> e) {
+        if(e == null || e.children() == 0) return e;
+        Tree<Token> a = expression(e.child(0));
+        if(e.children() == 1) return unary(e, a);
+        return binary(e, a, expression(e.child(1)));
+    }
+
+    // rebuild a node if any of its children have changed
+    private static Tree<Token> rebuild(Tree<Token> e, Tree<Token> a) {
+        return (a == e.child(0)) ? e : node(e.token(), a);
+    }
+
+    private static Tree<Token> rebuild(Tree<Token> e, Tree<Token> a, Tree<Token> b) {
+        return (a == e.child(0) && b == e.child(1)) ? e : node(e.token(), a, b);
+    }
+
+    private static Tree<Token> unary(Tree<Token> e, Tree<Token> a) {
+        switch(e.token()) {
+            case NEGATE:
+                if(isNumber(a)) return number(-intValue(a));
+                if(a.token() == NEGATE && !isStringExpression(a.child(0))) return a.child(0);      // - - x
+                break;
+            case TO_STR:
+                if(isNumber(a)) return string(Integer.toString(intValue(a)));
+                break;
+            case TO_INT:
+                if(isStringLiteral(a)) return number(toInt(stringValue(a)));
+                break;
+            case LEN_STR:
+                if(isStringLiteral(a)) return number(stringValue(a).length());
+                break;
+        }
+        return rebuild(e, a);
+    }
+
+    // as the run time library does it
+    static int toInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    private static Tree<Token> binary(Tree<Token> e, Tree<Token> a, Tree<Token> b) {
+        Token token = e.token();
+        boolean aIsString = isStringExpression(a);
+        boolean bIsString = isStringExpression(b);
+        if(aIsString || bIsString) {
+            if(token == PLUS) return concat(e, a, b, aIsString, bIsString);
+            if(aIsString && bIsString && isStringLiteral(a) && isStringLiteral(b)) {
+                Integer result = compare(token, stringValue(a).compareTo(stringValue(b)), 0);
+                if(result != null) return number(result);
+            }
+            return rebuild(e, a, b);
+        }
+
+        // both ints - first try to do the whole operation
+        if(isNumber(a) && isNumber(b)) {
+            Integer result = arithmetic(token, intValue(a), intValue(b));
+            if(result == null) result = compare(token, intValue(a), intValue(b));
+            if(result != null) return number(result);
+            return rebuild(e, a, b);
+        }
+
+        // keep constants on the right of + and *, so they can be combined below
+        if((token == PLUS || token == TIMES) && isNumber(a)) {
+            Tree<Token> t = a;
+            a = b;
+            b = t;
+        }
+
+        if(isNumber(b)) {
+            int n = intValue(b);
+            switch(token) {
+                case MINUS:
+                    if(n != Integer.MIN_VALUE) return plus(a, -n);
+                    break;
+                case PLUS:
+                    return plus(a, n);
+                case TIMES:
+                    // (x * c1) * c2  is  x * (c1 * c2)
+                    if(a.token() == TIMES && isNumber(a.child(1))) {
+                        n *= intValue(a.child(1));
+                        a = a.child(0);
+                    }
+                    if(n == 1) return a;
+                    if(n == -1) return node(NEGATE, a);
+                    if(n == 0 && !canTrap(a)) return number(0);
+                    return node(TIMES, a, number(n));
+                case DIVIDE:
+                    if(n == 1) return a;
+                    if(n == -1) return node(NEGATE, a);
+                    break;
+                case MOD:
+                    if((n == 1 || n == -1) && !canTrap(a)) return number(0);
+                    break;
+                case SHL:
+                case SHR:
+                case SHRS:
+                    if((n & 31) == 0) return a;     // only the low 5 bits of a shift count are used
+                    break;
+            }
+        } else if(isNumber(a)) {
+            int n = intValue(a);
+            switch(token) {
+                case MINUS:
+                    if(n == 0) return node(NEGATE, b);
+                    break;
+                case SHL:
+                case SHR:
+                case SHRS:
+                    if(n == 0 && !canTrap(b)) return number(0);
+                    break;
+            }
+        }
+        return rebuild(e, a, b);
+    }
+
+    // x + n, combining n with any constant already added to x
+    private static Tree<Token> plus(Tree<Token> x, int n) {
+        if(x.token() == PLUS && isNumber(x.child(1))) {
+            n += intValue(x.child(1));
+            x = x.child(0);
+        } else if(x.token() == MINUS && isNumber(x.child(1))) {
+            n -= intValue(x.child(1));
+            x = x.child(0);
+        }
+        if(n == 0) return x;
+        if(n < 0 && n != Integer.MIN_VALUE) return node(MINUS, x, number(-n));
+        return node(PLUS, x, number(n));
+    }
+
+    // string + anything
+    private static Tree<Token> concat(Tree<Token> e, Tree<Token> a, Tree<Token> b, boolean aIsString, boolean bIsString) {
+        if(isConstant(a) && isConstant(b)) {
+            String joined = literalText(a) + literalText(b);
+            if(joined.length() <= MAX_STRING) return string(joined);
+        }
+        // "" + s  and  s + ""  are just s
+        if(aIsString && isStringLiteral(b) && stringValue(b).isEmpty()) return a;
+        if(bIsString && isStringLiteral(a) && stringValue(a).isEmpty()) return b;
+        // (x + "a") + "b"  is  x + "ab"  provided x + "a" is already a string
+        if(isConstant(b) && a.token() == PLUS && isConstant(a.child(1)) && isStringExpression(a.child(0))) {
+            String joined = literalText(a.child(1)) + literalText(b);
+            if(joined.length() <= MAX_STRING) return node(PLUS, a.child(0), string(joined));
+        }
+        return rebuild(e, a, b);
+    }
+
+    private static String literalText(Tree<Token> e) {
+        return isNumber(e) ? Integer.toString(intValue(e)) : stringValue(e);
+    }
+
+    /** Do an arithmetic operation as the JVM would.
+     * @return the result or null if the operation isn't arithmetic or would fail (division by 0).
+     */
+    static Integer arithmetic(Token token, int a, int b) {
+        switch(token) {
+            case PLUS:      return a + b;
+            case MINUS:     return a - b;
+            case TIMES:     return a * b;
+            case DIVIDE:    return (b == 0) ? null : a / b;
+            case MOD:       return (b == 0) ? null : a % b;
+            case SHL:       return a << b;
+            case SHR:       return a >>> b;     // see Code: SHR is iushr
+            case SHRS:      return a >> b;      //       and SHRS is ishr
+            default:        return null;
+        }
+    }
+
+    /** Do a comparison.
+     * @return 1 (true) or 0 (false), or null if token isn't a relational operator.
+     */
+    static Integer compare(Token token, int a, int b) {
+        switch(token) {
+            case LT:        return (a <  b) ? 1 : 0;
+            case LE:        return (a <= b) ? 1 : 0;
+            case GT:        return (a >  b) ? 1 : 0;
+            case GE:        return (a >= b) ? 1 : 0;
+            case EQ:        return (a == b) ? 1 : 0;
+            case NE:        return (a != b) ? 1 : 0;
+            default:        return null;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** A program as a control flow graph - the intermediate form between the AST and the Jasmin code.
+ *
+ * Each basic block is a list of simple statements (assignments, prints and reads, still AST nodes) ending in a jump:
+ * to one block, to one of two blocks depending on a test, or out of the program.  {@link #build(Tree)} makes the graph
+ * from the structured statements (if, while, until, break and continue), giving each variable declared a name of its own
+ * ({@code x}, then {@code x'2}...) so that scopes no longer matter.  {@link Ssa} puts a graph into SSA form and back,
+ * {@link GraphOptimise} runs the passes over it and {@link CodeGen#writeGraphCode(Graph)} generates its code.
+ */
+public class Graph {
+
+    /** A basic block. */
+    static class Block {
+        final int id;
+
+        /** Phi nodes - only in SSA form. */
+        final List<Phi> phis = new ArrayList<>();
+
+        /** Assignments, prints and reads, run in turn. */
+        final List<Tree<Token>> code = new ArrayList<>();
+
+        /** If not null, the block goes to ifTrue when this is true (as an if's test is - a string is true unless empty). */
+        Tree<Token> test;
+        Block ifTrue;
+
+        /** Where the block goes otherwise - null at the end of the program. */
+        Block next;
+
+        /** The blocks which go to this one (see {@link Graph#update()}). */
+        final List<Block> predecessors = new ArrayList<>();
+
+        Block(int id) { this.id = id; }
+
+        /** @return the blocks this one goes to: next first. */
+        List<Block> successors() {
+            List<Block> blocks = new ArrayList<>(2);
+            if(next != null) blocks.add(next);
+            if(test != null && ifTrue != next) blocks.add(ifTrue);
+            return blocks;
+        }
+
+        public String toString() { return "B" + id; }
+    }
+
+    /** A phi node: its version of the variable is the one named for the block control came from. */
+    static class Phi {
+        final String variable;
+        String target;
+        final Map<Block, String> args = new LinkedHashMap<>();
+
+        Phi(String variable) {
+            this.variable = variable;
+            this.target = variable;
+        }
+    }
+
+    /** The block the program starts in. */
+    Block entry;
+
+    /** The blocks which can be reached from the entry, in reverse postorder - the order their code is written in. */
+    List<Block> blocks = new ArrayList<>();
+
+    /** In SSA form, the variable each version belongs to. */
+    final Map<String, String> variableOf = new HashMap<>();
+
+    private int blockCount = 0;
+
+    Block newBlock() { return new Block(blockCount++); }
+
+    /**
+     * Work out the blocks which can be reached and their order, and each block's predecessors, after the jumps change.
+     * Phis lose the versions for blocks which no longer go to them.
+     */
+    void update() {
+        // depth first, next before ifTrue - so a block's ifTrue follows it where it can (the then part after an if's test)
+        List<Block> order = new ArrayList<>();
+        Set<Block> seen = new HashSet<>();
+        Deque<Block> path = new ArrayDeque<>();
+        Deque<Iterator<Block>> toVisit = new ArrayDeque<>();
+        seen.add(entry);
+        path.push(entry);
+        toVisit.push(entry.successors().iterator());
+        while(!path.isEmpty()) {
+            Iterator<Block> successors = toVisit.peek();
+            if(successors.hasNext()) {
+                Block b = successors.next();
+                if(seen.add(b)) {
+                    path.push(b);
+                    toVisit.push(b.successors().iterator());
+                }
+            } else {
+                toVisit.pop();
+                order.add(path.pop());
+            }
+        }
+        Collections.reverse(order);
+        blocks = order;
+        for(Block b : blocks) b.predecessors.clear();
+        for(Block b : blocks) {
+            for(Block s : b.successors()) s.predecessors.add(b);
+        }
+        for(Block b : blocks) {
+            for(Phi phi : b.phis) phi.args.keySet().retainAll(b.predecessors);
+        }
+    }
+
+    /**
+     * Liveness analysis of a graph not in SSA form: the variables a block may read before setting them, or which
+     * it may pass on unchanged to a block reading them.
+     * @return the variables live at the start of each block.
+     */
+    Map<Block, Set<String>> liveIn() {
+        Map<Block, Set<String>> used = new HashMap<>();
+        Map<Block, Set<String>> set = new HashMap<>();
+        for(Block b : blocks) {
+            Set<String> reads = new HashSet<>();
+            Set<String> sets = new HashSet<>();
+            for(Tree<Token> s : b.code) {
+                Set<String> names = new HashSet<>();
+                reads(s, names);
+                names.removeAll(sets);
+                reads.addAll(names);
+                String target = target(s);
+                if(target != null) sets.add(target);
+            }
+            Set<String> names = new HashSet<>();
+            reads(b.test, names);
+            names.removeAll(sets);
+            reads.addAll(names);
+            used.put(b, reads);
+            set.put(b, sets);
+        }
+        Map<Block, Set<String>> live = new HashMap<>();
+        for(Block b : blocks) live.put(b, used.get(b));
+        for(boolean changed = true; changed; ) {
+            changed = false;
+            for(int i = blocks.size() - 1; i >= 0; i--) {
+                Block b = blocks.get(i);
+                Set<String> in = new HashSet<>();
+                for(Block s : b.successors()) in.addAll(live.get(s));
+                in.removeAll(set.get(b));
+                in.addAll(used.get(b));
+                if(!in.equals(live.get(b))) {
+                    live.put(b, in);
+                    changed = true;
+                }
+            }
+        }
+        return live;
+    }
+
+    /** @return every variable the code sets or reads. */
+    Set<String> variables() {
+        Set<String> names = new LinkedHashSet<>();
+        for(Block b : blocks) {
+            for(Tree<Token> s : b.code) {
+                String target = target(s);
+                if(target != null) names.add(target);
+                reads(s, names);
+            }
+            reads(b.test, names);
+        }
+        return names;
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // the simple statements in blocks
+
+    /** @return the variable a statement in a block sets, or null. */
+    static String target(Tree<Token> s) {
+        switch(s.token()) {
+            case ASSIGN:        return s.child(0).toString();
+            case READ_INT:
+            case READ_STR:      return s.toString();
+            default:            return null;
+        }
+    }
+
+    /** @return a statement in a block setting another variable. */
+    static Tree<Token> withTarget(Tree<Token> s, String name) {
+        return (s.token() == ASSIGN) ? Tree.list(ASSIGN, variable(name), s.child(1)) : Tree.leaf(s.token(), name);
+    }
+
+    /** Find the variables a statement in a block (or a test) reads.
+     * @param s  statement, expression or null.
+     * @param names  where the names are added.
+     */
+    static void reads(Tree<Token> s, Set<String> names) {
+        if(s == null) return;
+        switch(s.token()) {
+            case ASSIGN:        Optimise.variables(s.child(1), names);  return;
+            case READ_INT:
+            case READ_STR:      return;
+            default:            Optimise.variables(s, names);
+        }
+    }
+
+    /**
+     * Replace the variables in an expression.
+     * @param e  an expression.
+     * @param f  gives the replacement for a variable, or null to keep it.
+     * @return the new expression, or e itself if nothing is replaced.
+     */
+    static Tree<Token> mapVariables(Tree<Token> e, Function<String, Tree<Token>> f) {
+        if(e.token() == IDENTIFIER) {
+            Tree<Token> replacement = f.apply(e.toString());
+            return (replacement == null) ? e : replacement;
+        }
+        return mapChildren(e, child -> mapVariables(child, f));
+    }
+
+    /** @return the name for another variable (or version of one) made from a name - keeping a string's '$' at the end. */
+    static String withSuffix(String name, String suffix) {
+        return isStringName(name) ? name.substring(0, name.length() - 1) + suffix + "$" : name + suffix;
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // building the graph
+
+    /**
+     * Make the graph of a program.
+     * @param tree  AST for the program.
+     * @return its graph, or null if the program has an error for the code generator to report
+     *         (a variable used before it is declared, an assignment of the wrong type, a break outside a loop...).
+     */
+    public static Graph build(Tree<Token> tree) {
+        Builder builder = new Builder();
+        try {
+            builder.statement(tree);
+        } catch (Invalid e) {
+            return null;
+        }
+        Graph graph = builder.graph;
+        graph.update();
+        return graph;
+    }
+
+    private static class Invalid extends RuntimeException {
+        Invalid() { super(null, null, false, false); }
+    }
+
+    private static final Invalid INVALID = new Invalid();
+
+    private static class Builder {
+        final Graph graph = new Graph();
+        Block current = graph.entry = graph.newBlock();
+
+        // the names given to the variables declared in each scope (scopes are opened as CodeGen does)
+        final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+        final Map<String, Integer> declarations = new HashMap<>();
+
+        // where break and continue go in the loops around the current statement
+        final Deque<Block> breaks = new ArrayDeque<>();
+        final Deque<Block> continues = new ArrayDeque<>();
+
+        Builder() {
+            scopes.push(new HashMap<>());
+        }
+
+        void statement(Tree<Token> s) {
+            Token token = s.token();
+            switch(token) {
+                case STATEMENTLIST:
+                    for(Tree<Token> t : s.allChildren()) statement(t);
+                    return;
+                case BLOCK:
+                    scopes.push(new HashMap<>());
+                    for(Tree<Token> t : s.allChildren()) statement(t);
+                    scopes.pop();
+                    return;
+                case ASSIGN: {
+                    String name = s.child(0).toString();
+                    Tree<Token> value = expression(s.child(1));
+                    if(isStringName(name) != isStringExpression(value)) throw INVALID;
+                    current.code.add(Tree.list(ASSIGN, variable(store(name)), value));
+                    return;
+                }
+                case INCREMENT:
+                case DECREMENT: {
+                    Tree<Token> var = expression(s.child(0));
+                    if(isStringName(var)) throw INVALID;
+                    current.code.add(Tree.list(ASSIGN, var, node(token == INCREMENT ? PLUS : MINUS, var, number(1))));
+                    return;
+                }
+                case PRINT:
+                case PRINT_REPEAT:
+                    current.code.add(mapExpressions(s, this::expression));
+                    return;
+                case READ_INT:
+                case READ_STR:
+                    current.code.add(Tree.leaf(token, store(s.toString())));
+                    return;
+                case IF:
+                    ifStatement(s);
+                    return;
+                case WHILE:
+                case UNTIL:
+                    loop(s);
+                    return;
+                case BREAK:
+                case CONTINUE:
+                    if(breaks.isEmpty()) throw INVALID;
+                    jump((token == BREAK) ? breaks.peek() : continues.peek());
+                    current = graph.newBlock();     // for any statements after it, which can't be reached
+                    return;
+                default:
+                    throw INVALID;
+            }
+        }
+
+        void ifStatement(Tree<Token> s) {
+            scopes.push(new HashMap<>());      // one scope for the whole if
+            Block end = graph.newBlock();
+            for(int i = 0; i < s.children(); i += 2) {
+                Tree<Token> test = s.child(i);
+                if(test == null) {     // else
+                    statement(s.child(i + 1));
+                    break;
+                }
+                Block then = graph.newBlock();
+                Block otherwise = graph.newBlock();
+                branch(expression(test), then, otherwise);
+                current = then;
+                statement(s.child(i + 1));
+                jump(end);
+                current = otherwise;
+            }
+            jump(end);
+            current = end;
+            scopes.pop();
+        }
+
+        // a loop's test is made on the way in (for while) and at the bottom, where continue goes
+        void loop(Tree<Token> s) {
+            boolean isWhile = s.token() == WHILE;
+            Tree<Token> test = s.child(0);
+            scopes.push(new HashMap<>());      // one scope for the whole loop
+            Block body = graph.newBlock();
+            Block bottom = graph.newBlock();
+            Block exit = graph.newBlock();
+            if(isWhile && test != null) branch(expression(test), body, exit);
+            else jump(body);
+            breaks.push(exit);
+            continues.push(bottom);
+            current = body;
+            statement(s.child(1));
+            jump(bottom);
+            breaks.pop();
+            continues.pop();
+            current = bottom;
+            if(test == null) jump(body);
+            else if(isWhile) branch(expression(test), body, exit);
+            else branch(expression(test), exit, body);
+            current = exit;
+            scopes.pop();
+        }
+
+        void jump(Block to) {
+            current.next = to;
+        }
+
+        void branch(Tree<Token> test, Block ifTrue, Block otherwise) {
+            current.test = test;
+            current.ifTrue = ifTrue;
+            current.next = otherwise;
+        }
+
+        // an expression using the variables' own names
+        Tree<Token> expression(Tree<Token> e) {
+            return mapVariables(e, name -> variable(load(name)));
+        }
+
+        String load(String name) {
+            for(Map<String, String> scope : scopes) {
+                String unique = scope.get(name);
+                if(unique != null) return unique;
+            }
+            throw INVALID;     // not declared
+        }
+
+        // the name of the variable stored to - declared in the current scope if it isn't found, as the code generator does
+        String store(String name) {
+            for(Map<String, String> scope : scopes) {
+                String unique = scope.get(name);
+                if(unique != null) return unique;
+            }
+            int n = declarations.merge(name, 1, Integer::sum);
+            String unique = (n == 1) ? name : withSuffix(name, "'" + n);
+            scopes.peek().put(name, unique);
+            return unique;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import sal.small.Graph.Block;
+import sal.small.Graph.Phi;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Optimisation of a program's {@link Graph}.
+ *
+ * The graph is put into SSA form (see {@link Ssa}) for the passes which follow values through it:
+ * <ul>
+ * <li>ssa-constants - a version set to a constant (or a phi whose versions all have the same constant value) is replaced by
+ *     the constant where it is used, and the expression folded.  A test which becomes a constant becomes a jump,
+ *     and the blocks no longer reached are dropped - which may make more phis constant.</li>
+ * <li>ssa-deadcode - assignments and phis whose versions are never used are removed (but not an assignment which
+ *     could divide by zero, or a read).</li>
+ * </ul>
+ * Then, out of SSA form:
+ * <ul>
+ * <li>ssa-jumps - a jump to a block which only jumps on goes straight to where that block goes, and a block which is
+ *     the only way into the block it goes to is joined to it.</li>
+ * </ul>
+ * ssa-constants and ssa-deadcode repeat, across the whole graph, what the AST's propagate and deadcode passes do
+ * within its statements.  The AST passes stay while the loop passes after them (idioms, unroll, hoist, induction)
+ * work on the AST and need their results - unroll needs a loop's start value to be a constant.  As each loop pass
+ * moves to the graph, the AST passes it needs are dropped from {@link Optimise#passes}; once none is left,
+ * propagate, deadcode and propagate-copies go, and {@link Propagate} and {@link DeadCode} with them.
+ */
+public class GraphOptimise {
+
+    /** The name for code generation through the graph, made at level 2 (see {@link Passes}). */
+    static final String GRAPH = "ssa";
+
+    /** The graph passes, and the steps into and out of SSA form between them. */
+    static final Passes<Graph> passes = new Passes<Graph>(null)
+            .step("ssa-build", Ssa::build)
+            .add("ssa-constants", 1, GraphOptimise::constants)
+            .add("ssa-deadcode", 1, GraphOptimise::deadCode)
+            .step("ssa-destroy", Ssa::destroy)
+            .add("ssa-jumps", 1, GraphOptimise::jumps);
+
+    /** @return true if code is generated through the graph. */
+    public static boolean isOn() {
+        return Passes.isOn(GRAPH, 2);
+    }
+
+    /** @return the name for the graph, and the names of its passes. */
+    static List<String> passNames() {
+        List<String> names = new ArrayList<>();
+        names.add(GRAPH);
+        names.addAll(passes.names());
+        return names;
+    }
+
+    /**
+     * Optimise a program's graph.
+     * @param graph  the graph, not in SSA form.
+     * @return the changed graph, not in SSA form.
+     */
+    public static Graph program(Graph graph) {
+        return passes.run(graph);
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // constants
+
+    static Graph constants(Graph graph) {
+        for(boolean jumped = true; jumped; ) {
+            // the versions with constant values - until no more are found
+            Map<String, Tree<Token>> values = new HashMap<>();
+            for(boolean changed = true; changed; ) {
+                changed = false;
+                for(Block b : graph.blocks) {
+                    for(Phi phi : b.phis) changed |= learn(values, phi.target, phiValue(phi, values));
+                    for(Tree<Token> s : b.code) {
+                        if(s.token() == ASSIGN) changed |= learn(values, Graph.target(s), constant(substitute(s.child(1), values)));
+                    }
+                }
+            }
+            // use them (the phis' versions are left, so each variable still holds every value it held)
+            jumped = false;
+            for(Block b : graph.blocks) {
+                for(int i = 0; i < b.code.size(); i++) {
+                    Tree<Token> s = mapExpressions(b.code.get(i), e -> substitute(e, values));
+                    if(s != b.code.get(i)) Passes.rewrote(1);
+                    b.code.set(i, s);
+                }
+                if(b.test == null) continue;
+                Tree<Token> test = substitute(b.test, values);
+                if(test != b.test) Passes.rewrote(1);
+                b.test = test;
+                if(isConstant(b.test)) {
+                    Passes.rewrote(1);
+                    boolean taken = isNumber(b.test) ? intValue(b.test) != 0 : !stringValue(b.test).isEmpty();
+                    if(taken) b.next = b.ifTrue;
+                    b.test = null;
+                    b.ifTrue = null;
+                    jumped = true;
+                }
+            }
+            if(jumped) graph.update();
+        }
+        return graph;
+    }
+
+    private static boolean learn(Map<String, Tree<Token>> values, String version, Tree<Token> value) {
+        if(value == null || values.containsKey(version)) return false;
+        values.put(version, value);
+        return true;
+    }
+
+    // the constant all of a phi's versions have, or null
+    private static Tree<Token> phiValue(Phi phi, Map<String, Tree<Token>> values) {
+        Tree<Token> value = null;
+        for(String version : phi.args.values()) {
+            Tree<Token> v = values.get(version);
+            if(v == null || (value != null && !sameConstant(v, value))) return null;
+            value = v;
+        }
+        return value;
+    }
+
+    private static boolean sameConstant(Tree<Token> a, Tree<Token> b) {
+        if(isNumber(a)) return isNumber(b) && intValue(a) == intValue(b);
+        return isStringLiteral(b) && stringValue(a).equals(stringValue(b));
+    }
+
+    private static Tree<Token> constant(Tree<Token> e) {
+        return isConstant(e) ? e : null;
+    }
+
+    // an expression with the constant versions replaced, folded again if any were
+    private static Tree<Token> substitute(Tree<Token> e, Map<String, Tree<Token>> values) {
+        Tree<Token> f = Graph.mapVariables(e, values::get);
+        return (f == e) ? e : Fold.expression(f);
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // dead code
+
+    static Graph deadCode(Graph graph) {
+        Map<String, Tree<Token>> assignments = new HashMap<>();
+        Map<String, Phi> phis = new HashMap<>();
+        Set<String> used = new HashSet<>();
+        for(Block b : graph.blocks) {
+            for(Phi phi : b.phis) phis.put(phi.target, phi);
+            for(Tree<Token> s : b.code) {
+                if(s.token() == ASSIGN && !canTrap(s.child(1))) assignments.put(Graph.target(s), s.child(1));
+                else Graph.reads(s, used);      // the statement stays, so what it reads is used
+            }
+            Graph.reads(b.test, used);
+        }
+        // what the versions used are made from is used too
+        Deque<String> work = new ArrayDeque<>(used);
+        while(!work.isEmpty()) {
+            String version = work.pop();
+            Set<String> names = new HashSet<>();
+            variables(assignments.get(version), names);
+            Phi phi = phis.get(version);
+            if(phi != null) names.addAll(phi.args.values());
+            for(String name : names) {
+                if(used.add(name)) work.push(name);
+            }
+        }
+        for(Block b : graph.blocks) {
+            int before = b.phis.size() + b.code.size();
+            b.phis.removeIf(phi -> !used.contains(phi.target));
+            b.code.removeIf(s -> assignments.containsKey(Graph.target(s)) && !used.contains(Graph.target(s)));
+            Passes.rewrote(before - b.phis.size() - b.code.size());
+        }
+        return graph;
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // jumps
+
+    static Graph jumps(Graph graph) {
+        for(Block b : graph.blocks) {
+            b.next = skip(b.next);
+            if(b.test == null) continue;
+            b.ifTrue = skip(b.ifTrue);
+            if(b.ifTrue == b.next && !canTrap(b.test)) {        // goes the same way either way
+                b.test = null;
+                b.ifTrue = null;
+                Passes.rewrote(1);
+            }
+        }
+        graph.entry = skip(graph.entry);
+        graph.update();
+        Set<Block> joined = new HashSet<>();
+        for(Block b : graph.blocks) {
+            if(joined.contains(b)) continue;
+            for(Block n = b.next; b.test == null && n != null && n != b && n != graph.entry && n.predecessors.size() == 1; n = b.next) {
+                b.code.addAll(n.code);
+                b.test = n.test;
+                b.ifTrue = n.ifTrue;
+                b.next = n.next;
+                joined.add(n);
+                Passes.rewrote(1);
+            }
+        }
+        graph.update();
+        return graph;
+    }
+
+    // where a jump to a block ends up, going through blocks which only jump on
+    private static Block skip(Block b) {
+        Set<Block> seen = new HashSet<>();
+        Block to = b;
+        while(to != null && to.code.isEmpty() && to.test == null && to.next != null && seen.add(to)) to = to.next;
+        if(to != b) Passes.rewrote(1);
+        return to;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Loop invariant code motion.
+ *
+ * An expression in a while or do/until loop (test or body) which uses no variable the loop changes
+ * gives the same value each time round, so it is worked out once, into a temporary, before the loop:
+ * {@code while ... print 30 - w / 2 ... end} becomes {@code { #1 = 30 - w / 2  while ... print #1 ... end }}
+ * (the block keeps the temporary local to the loop).  Expressions are pure - reading and printing are statements -
+ * but one that could divide by zero is left where it is, since the loop might not have evaluated it.
+ * Inner loops are done first, so an expression moves out as many loops as it can.
+ */
+public class Hoist {
+
+    /**
+     * Move invariant expressions out of the loops of a program.
+     * @param tree  AST for the program.
+     * @return the changed AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        return mapStatements(tree, s -> isLoop(s) ? loop(s) : s);
+    }
+
+    // hoist the invariant expressions of one loop
+    private static Tree<Token> loop(Tree<Token> loop) {
+        Set<String> changed = new HashSet<>();
+        assignedIn(loop, changed);
+        Tree.Shared<Token> shapes = new Tree.Shared<>();       // to find an expression used more than once
+        Map<Tree<Token>, String> temps = new IdentityHashMap<>();
+        Tree<Token> block = Tree.list(BLOCK);
+        Tree<Token> newLoop = mapExpressions(loop, e -> replace(e, changed, shapes, temps, block));
+        if(temps.isEmpty()) return loop;
+        block.addChild(newLoop);
+        return block;
+    }
+
+    // replace the largest invariant parts of e with temporaries, adding their assignments to block
+    private static Tree<Token> replace(Tree<Token> e, Set<String> changed, Tree.Shared<Token> shapes,
+                                       Map<Tree<Token>, String> temps, Tree<Token> block) {
+        if(e.isLeaf()) return e;
+        if(worthATemporary(e) && !uses(e, changed) && !canTrap(e)) {
+            Tree<Token> key = shapes.intern(e);
+            String temp = temps.get(key);
+            if(temp == null) {
+                temp = temporary(isStringExpression(e));
+                temps.put(key, temp);
+                block.addChild(node(ASSIGN, variable(temp), e));
+            }
+            return variable(temp);
+        }
+        return mapChildren(e, child -> replace(child, changed, shapes, temps, block));
+    }
+}
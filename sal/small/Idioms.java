@@ -0,0 +1,103 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Recognition of loops which just print the same thing a number of times.
+ *
+ * A loop which counts a variable down to a constant k (at least 0), and otherwise only prints values which don't
+ * depend on it, such as {@code while spaces > 0 do print " "  spaces = spaces - 1 end}, becomes a single call of the
+ * run time library's printRepeat: {@code if spaces > 0 then <print " " (spaces) times>  spaces = 0 end} -
+ * the counter is left as the loop would have left it.  The values printed must not divide by zero
+ * (the loop would print its first few values before failing).
+ */
+public class Idioms {
+
+    /**
+     * Replace the repeated print loops of a program.
+     * @param tree  AST for the program.
+     * @return the changed AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        return mapStatements(tree, s -> {
+            Tree<Token> repeat = (s.token() == WHILE) ? printRepeat(s) : null;
+            return (repeat != null) ? repeat : s;
+        });
+    }
+
+    // the replacement for a while loop which prints the same thing n times, or null if it isn't one
+    private static Tree<Token> printRepeat(Tree<Token> loop) {
+        // the test must be  counter > k  (or an equivalent)
+        Tree<Token> test = loop.child(0);
+        if(test == null || test.children() != 2) return null;
+        Token compare = test.token();
+        Tree<Token> counter = test.child(0);
+        Tree<Token> limit = test.child(1);
+        if(isNumber(counter) && (compare == LT || compare == LE)) {       // k < counter
+            counter = test.child(1);
+            limit = test.child(0);
+            compare = (compare == LT) ? GT : GE;
+        }
+        if(!isVariable(counter) || isStringName(counter) || !isNumber(limit)) return null;
+        int k = intValue(limit);
+        if(compare == GE && k != Integer.MIN_VALUE) {        // counter >= k  is  counter > k - 1
+            compare = GT;
+            k--;
+        }
+        if(compare != GT || k < 0) return null;      // (k >= 0 so counter - k can't overflow)
+
+        // the body must be prints and one step of -1 to the counter
+        List<Tree<Token>> statements = new ArrayList<>();
+        flatten(loop.child(1), statements);
+        String name = counter.toString();
+        Tree<Token> text = null;
+        boolean stepped = false;
+        for(Tree<Token> s : statements) {
+            if(!stepped && name.equals(steppedVariable(s)) && stepOf(s) == -1) {
+                stepped = true;
+            } else if(s.token() == PRINT) {
+                Tree<Token> e = s.child(0);
+                if(canTrap(e) || uses(e, Collections.singleton(name))) return null;
+                if(!isStringExpression(e)) e = node(TO_STR, e);
+                text = (text == null) ? e : node(PLUS, text, e);
+            } else {
+                return null;
+            }
+        }
+        if(!stepped || text == null) return null;
+
+        Tree<Token> times = Fold.expression(node(MINUS, counter, number(k)));
+        Tree<Token> body = Tree.list(STATEMENTLIST,
+                                     Tree.list(PRINT_REPEAT, Fold.expression(text), times),
+                                     node(ASSIGN, counter, number(k)));
+        return Tree.list(IF, node(GT, counter, number(k)), body);
+    }
+
+    // the statements of a list, and of the lists in it
+    private static void flatten(Tree<Token> s, List<Tree<Token>> statements) {
+        if(s.token() == STATEMENTLIST) {
+            for(Tree<Token> t : s.allChildren()) flatten(t, statements);
+        } else {
+            statements.add(s);
+        }
+    }
+}
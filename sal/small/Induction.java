@@ -0,0 +1,98 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Strength reduction of induction variables.
+ *
+ * An induction variable of a loop is an int changed only by steps of a constant ({@code i = i + 3}, {@code i++})
+ * made by statements at the top level of the loop's body.  A product {@code i * c} in the loop is kept in a
+ * temporary instead, set before the loop and stepped by {@code 3 * c} just after each step of i:
+ * {@code while i < n do print i * 10  i = i + 1 end} becomes
+ * {@code { #1 = i * 10  while i < n do print #1  i = i + 1  #1 = #1 + 10 end }}.
+ * Arithmetic wraps round, so the temporary always equals the product, overflow or not.
+ * A multiplication by a power of 2 is left alone, as a shift is as cheap as the add which would replace it.
+ */
+public class Induction {
+
+    /**
+     * Reduce the products of induction variables in the loops of a program.
+     * @param tree  AST for the program.
+     * @return the changed AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        return mapStatements(tree, s -> isLoop(s) ? loop(s) : s);
+    }
+
+    private static Tree<Token> loop(Tree<Token> loop) {
+        Tree<Token> body = loop.child(1);
+        // the induction variables: every change to them is a step in the body's own statements
+        Set<String> stepped = new HashSet<>();
+        Set<String> changedOtherwise = new HashSet<>();
+        for(Tree<Token> s : body.allChildren()) {
+            String name = steppedVariable(s);
+            if(name != null) stepped.add(name);
+            else assignedIn(s, changedOtherwise);
+        }
+        stepped.removeAll(changedOtherwise);
+        stepped.removeIf(Token::isStringName);
+        if(stepped.isEmpty()) return loop;
+
+        // replace the products, giving each (variable, constant) pair a temporary
+        Map<String, Map<Integer, String>> temps = new LinkedHashMap<>();
+        Tree<Token> newLoop = mapExpressions(loop, e -> replace(e, stepped, temps));
+        if(temps.isEmpty()) return loop;
+
+        // step each temporary with its variable
+        Tree<Token> newBody = Tree.list(STATEMENTLIST);
+        for(Tree<Token> s : newLoop.child(1).allChildren()) {
+            newBody.addChild(s);
+            String name = steppedVariable(s);
+            if(name == null || !temps.containsKey(name)) continue;
+            int step = stepOf(s);
+            for(Map.Entry<Integer, String> temp : temps.get(name).entrySet()) {
+                Tree<Token> t = variable(temp.getValue());
+                newBody.addChild(node(ASSIGN, t, Fold.expression(node(PLUS, t, number(step * temp.getKey())))));
+            }
+        }
+        Tree<Token> block = Tree.list(BLOCK);
+        for(Map.Entry<String, Map<Integer, String>> v : temps.entrySet()) {
+            for(Map.Entry<Integer, String> temp : v.getValue().entrySet()) {
+                block.addChild(node(ASSIGN, variable(temp.getValue()), node(TIMES, variable(v.getKey()), number(temp.getKey()))));
+            }
+        }
+        block.addChild(Tree.list(newLoop.token(), newLoop.child(0), newBody));
+        return block;
+    }
+
+    // replace the products of induction variables and constants in e with temporaries
+    private static Tree<Token> replace(Tree<Token> e, Set<String> stepped, Map<String, Map<Integer, String>> temps) {
+        if(e.isLeaf()) return e;
+        if(e.token() == TIMES && isVariable(e.child(0)) && stepped.contains(e.child(0).toString())
+           && isNumber(e.child(1)) && Integer.bitCount(intValue(e.child(1))) != 1) {
+            return variable(temps.computeIfAbsent(e.child(0).toString(), k -> new LinkedHashMap<>())
+                                 .computeIfAbsent(intValue(e.child(1)), k -> temporary(false)));
+        }
+        return mapChildren(e, child -> replace(child, stepped, temps));
+    }
+}
@@ -114,21 +114,60 @@ public class Main {
 
         int argsLength = args.length;
         if (argsLength == 0) {
-            System.err.println("Valid arguments are: [-output folder] (filename )+ ");
+            System.err.println("Valid arguments are: [-output folder] [-share] [-split] [-storage local|static|hybrid] [-O0|-O1|-O2] [-fno-<pass>] [-evaluate] [-ssa] [-stats] (filename )+ ");
             System.exit(1);
         }
 
-        String outputDir;
+        // if not specified, use current working directory
+        String outputDir = System.getProperty("user.dir");
         int argIndex = 0;
-        String arg0 = args[0];
-        // check for an output directory parameter
-        if(argsLength >= 2 && arg0.length() > 1 && "-output".startsWith( arg0.toLowerCase())) {
-            // found output directory
-            outputDir = args[1];
-            argIndex = 2;   // start filenames at arg 3
-        } else {
-            // not specified, use current working directory
-            outputDir = System.getProperty("user.dir");
+        // check for options - filenames start at the first argument not beginning with '-'
+        while(argIndex < argsLength && args[argIndex].length() > 1 && args[argIndex].startsWith("-")) {
+            String option = args[argIndex++].toLowerCase();
+            if(option.equals("-share")) {
+                // share identical subexpressions in the AST
+                Parse.nodes = new Tree.Shared<>();
+            } else if(option.equals("-split")) {
+                // generate main as several methods HotSpot can compile
+                CodeGen.splitMain = true;
+            } else if(option.matches("-o[012]")) {
+                // optimisation level: none, the AST passes, or everything
+                Passes.level = option.charAt(2) - '0';
+            } else if(option.startsWith("-fno-")) {
+                // leave out an optimisation pass
+                Passes.disabled.add(option.substring(5));
+            } else if(option.equals("-evaluate")) {
+                // run what can be run at compile time (at any level)
+                Passes.enabled.add("evaluate");
+            } else if(option.equals("-ssa")) {
+                // generate code through the control flow graph, optimised in SSA form (at any level)
+                Passes.enabled.add(GraphOptimise.GRAPH);
+            } else if(option.equals("-stats")) {
+                // report the time and rewrites of each pass (and the time of the SSA steps)
+                Passes.report = true;
+            } else if(option.equals("-storage") && argIndex < argsLength) {
+                // where global variables are kept: local, static or hybrid
+                try {
+                    Storage.policy = Storage.valueOf(args[argIndex++].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.printf("Unknown storage policy %s\n", args[argIndex - 1]);
+                    System.exit(1);
+                }
+            } else if(argIndex < argsLength && "-output".startsWith(option)) {
+                // found output directory
+                outputDir = args[argIndex++];
+            } else {
+                System.err.printf("Unknown option %s\n", option);
+                System.exit(1);
+            }
+        }
+
+        // the passes left out must exist
+        for(String name : Passes.disabled) {
+            if(!Optimise.passNames().contains(name)) {
+                System.err.printf("Unknown pass %s - the passes are: %s\n", name, String.join(" ", Optimise.passNames()));
+                System.exit(1);
+            }
         }
 
 		// check it has a trailing separator
@@ -155,8 +194,11 @@ public class Main {
             Tree<Token> tree = Parse.program();
             if(errorCount() != 0) {
                 System.out.printf("%d errors while parsing %s.  Code generation not attempted\n", errorCount(), fileName);
+                Parse.nodes.clear();
                 continue;
             }
+            if(Passes.report) System.out.printf("Optimising %s at level %d\n", fileName, Passes.level);
+            tree = Optimise.program(tree);
             String outputFile = getOutputFileName(fileName);
             System.out.printf("Compiling %s to %s\n", fileName, outputDir + outputFile);
             PrintStream outputStream = getOutputStream(outputDir + outputFile);
@@ -177,6 +219,8 @@ public class Main {
                 jasmin.Main.main(jasminArgs);
                 
             }
+            // shared subtrees belong to one compilation
+            Parse.nodes.clear();
         }
     }
 }
@@ -0,0 +1,395 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+import static sal.small.Token.*;
+
+/** Optimisation of the AST between parsing and code generation.
+ *
+ * {@link #program(Tree)} runs the optimisation passes in turn - those on at the optimisation level (see {@link Passes}).
+ * Passes never change a tree node in place, they build new nodes (expression nodes may be shared - see {@link Tree.Shared}).
+ * This class also holds the small methods passes have in common.
+ */
+public class Optimise {
+
+    /** The AST passes, each with the least optimisation level it is made at. */
+    static final Passes<Tree<Token>> passes = new Passes<Tree<Token>>(Optimise::changes)
+            .add("evaluate", 2, Evaluate::program)
+            .add("fold", 1, Fold::program)
+            .add("propagate", 1, Propagate::program)
+            .add("deadcode", 1, DeadCode::program)      // after propagation has made tests constant
+            .add("idioms", 1, Idioms::program)          // before unrolling takes the loops apart
+            .add("unroll", 1, Unroll::program)
+            .add("hoist", 1, Hoist::program)
+            .add("induction", 1, Induction::program)
+            .add("common", 1, Common::program)
+            .add("propagate-copies", 1, Propagate::program);    // propagation again, for the copies made by Common
+
+    /**
+     * Optimise a program.
+     * @param tree  AST for the program, as produced by {@link Parse#program()}.
+     * @return the optimised AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        temporaries = 0;
+        return passes.run(tree);
+    }
+
+    /** @return the names of all the optimisation passes - of the AST, and of the graph (see {@link GraphOptimise#passNames()}). */
+    public static Set<String> passNames() {
+        Set<String> names = new LinkedHashSet<>(passes.names());
+        names.addAll(GraphOptimise.passNames());
+        return names;
+    }
+
+    private static int temporaries = 0;
+
+    /** Make a name for a temporary variable.  The '#' keeps it apart from the program's names
+     *  (and from the copies made by {@link Storage}).
+     * @param isString  true for a string variable.
+     * @return a new name.
+     */
+    static String temporary(boolean isString) {
+        return "#" + (++temporaries) + (isString ? "$" : "");
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // building nodes - through the parser's factory so identical subexpressions can be shared
+
+    static Tree<Token> number(int n) { return Parse.nodes.leaf(NUMBER, n); }
+
+    static Tree<Token> string(String s) { return Parse.nodes.stringLeaf(STRING, s); }
+
+    static Tree<Token> node(Token token, Tree<Token>... children) { return Parse.nodes.list(token, children); }
+
+    static Tree<Token> variable(String name) { return Parse.nodes.leaf(IDENTIFIER, name); }
+
+    ///////////////////////////////////////////////////////////////////////
+    // examining expressions
+
+    /** @return true if e is an int literal. */
+    static boolean isNumber(Tree<Token> e) { return e instanceof Tree.IntLeaf; }
+
+    /** @return the value of an int literal. */
+    static int intValue(Tree<Token> e) { return ((Tree.IntLeaf<Token>) e).value(); }
+
+    /** @return true if e is a string literal. */
+    static boolean isStringLiteral(Tree<Token> e) { return e instanceof Tree.StringLeaf; }
+
+    /** @return the (decoded) value of a string literal. */
+    static String stringValue(Tree<Token> e) { return ((Tree.StringLeaf<Token>) e).value(); }
+
+    /** @return true if e is a literal of either type. */
+    static boolean isConstant(Tree<Token> e) { return isNumber(e) || isStringLiteral(e); }
+
+    /** @return true if s is a while or do/until loop. */
+    static boolean isLoop(Tree<Token> s) { return s != null && (s.token() == WHILE || s.token() == UNTIL); }
+
+    /** @return true if e is a variable. */
+    static boolean isVariable(Tree<Token> e) { return e != null && e.token() == IDENTIFIER; }
+
+    /** Work out the type of an expression in the same way as {@link CodeGen#writeExpressionCode(Tree)}.
+     * @param e  an expression.
+     * @return true if it gives a string, false for an int.
+     */
+    static boolean isStringExpression(Tree<Token> e) {
+        switch(e.token()) {
+            case STRING:        return true;
+            case IDENTIFIER:    return isStringName(e);
+            case TO_STR:        return true;
+            case PLUS:          return isStringExpression(e.child(0)) || isStringExpression(e.child(1));
+            default:            return false;
+        }
+    }
+
+    /** Check whether evaluating an expression could throw an exception (division by zero)
+     * - such an expression must not be removed or evaluated when the program would not evaluate it.
+     * @param e  an expression.
+     * @return true unless e certainly evaluates without an exception.
+     */
+    static boolean canTrap(Tree<Token> e) {
+        if(e == null || e.isLeaf()) return false;
+        Token token = e.token();
+        if((token == DIVIDE || token == MOD) && !(isNumber(e.child(1)) && intValue(e.child(1)) != 0)) return true;
+        for(Tree<Token> child : e.allChildren()) {
+            if(canTrap(child)) return true;
+        }
+        return false;
+    }
+
+    /** Find the variables a statement may change - by assignment, read, ++ or --.
+     * @param statement  a statement or statement list.
+     * @param names  where the names are added.
+     */
+    static void assignedIn(Tree<Token> statement, Set<String> names) {
+        if(statement == null) return;
+        switch(statement.token()) {
+            case ASSIGN:
+            case INCREMENT:
+            case DECREMENT:
+                names.add(statement.child(0).toString());
+                return;
+            case READ_INT:
+            case READ_STR:
+                names.add(statement.toString());
+                return;
+            case STATEMENTLIST:
+            case BLOCK:
+            case IF:
+            case WHILE:
+            case UNTIL:
+                for(int i = 0; i < statement.children(); i++) assignedIn(statement.child(i), names);
+                return;
+            default:
+                return;
+        }
+    }
+
+    /** Find the variables an expression reads (or a statement reads or changes).
+     * @param e  an expression or statement (or null).
+     * @param names  where the names are added.
+     */
+    static void variables(Tree<Token> e, Set<String> names) {
+        if(e == null) return;
+        Token token = e.token();
+        if(token == IDENTIFIER || token == READ_INT || token == READ_STR) names.add(e.toString());
+        for(int i = 0; i < e.children(); i++) variables(e.child(i), names);
+    }
+
+    /** @return true if expression e uses any of the variables named. */
+    static boolean uses(Tree<Token> e, Set<String> names) {
+        if(e == null) return false;
+        if(e.token() == IDENTIFIER) return names.contains(e.toString());
+        for(int i = 0; i < e.children(); i++) {
+            if(uses(e.child(i), names)) return true;
+        }
+        return false;
+    }
+
+    /** Find the variable a statement steps by a constant: {@code i++}, {@code i--}, {@code i = i + n} or {@code i = i - n}.
+     * @param s  a statement.
+     * @return the variable's name, or null if s isn't a step.
+     */
+    static String steppedVariable(Tree<Token> s) {
+        switch(s.token()) {
+            case INCREMENT:
+            case DECREMENT:
+                return s.child(0).toString();
+            case ASSIGN: {
+                Tree<Token> e = s.child(1);
+                if((e.token() == PLUS || e.token() == MINUS) && isVariable(e.child(0)) && isNumber(e.child(1))
+                   && e.child(0).toString().equals(s.child(0).toString())) {
+                    return s.child(0).toString();
+                }
+                return null;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /** @return the size of a step, a statement for which {@link #steppedVariable(Tree)} isn't null. */
+    static int stepOf(Tree<Token> s) {
+        switch(s.token()) {
+            case INCREMENT:     return 1;
+            case DECREMENT:     return -1;
+            default: {
+                Tree<Token> e = s.child(1);
+                return (e.token() == PLUS) ? intValue(e.child(1)) : -intValue(e.child(1));
+            }
+        }
+    }
+
+    /** @return false if e is too simple to be worth keeping in a temporary: a leaf, or negating one. */
+    static boolean worthATemporary(Tree<Token> e) {
+        return !e.isLeaf() && !(e.token() == NEGATE && e.child(0).isLeaf());
+    }
+
+    /** Count the nodes in a tree - a rough measure of the code it generates.
+     * @param t  any tree.
+     * @return the number of nodes.
+     */
+    static int size(Tree<Token> t) {
+        if(t == null) return 0;
+        int n = 1;
+        for(int i = 0; i < t.children(); i++) n += size(t.child(i));
+        return n;
+    }
+
+    /** Count the places two trees differ - a pass's rewrites.  Nodes shared by both are not looked into,
+     *  and a node whose token or number of children has changed is one rewrite.
+     * @param a  a tree (or null).
+     * @param b  another tree (or null).
+     * @return the number of nodes of a replaced in b.
+     */
+    static int changes(Tree<Token> a, Tree<Token> b) {
+        if(a == b) return 0;
+        if(a == null || b == null || a.token() != b.token() || a.isLeaf() != b.isLeaf()) return 1;
+        if(a.isLeaf()) {
+            if(isNumber(a)) return (isNumber(b) && intValue(a) == intValue(b)) ? 0 : 1;
+            Object value = ((Tree.Leaf<Token, ?>) a).value();
+            return (b instanceof Tree.Leaf && Objects.equals(value, ((Tree.Leaf<Token, ?>) b).value())) ? 0 : 1;
+        }
+        if(a.children() != b.children()) return 1;
+        int n = 0;
+        for(int i = 0; i < a.children(); i++) n += changes(a.child(i), b.child(i));
+        return n;
+    }
+
+    /** Check for a jump out of the loop around a statement.
+     * @param s  a statement or statement list in a loop's body.
+     * @param jump  BREAK or CONTINUE.
+     * @return true if s has that jump belonging to the loop - not to a loop inside s.
+     */
+    static boolean jumpsOut(Tree<Token> s, Token jump) {
+        if(s == null) return false;
+        Token token = s.token();
+        switch(token) {
+            case BREAK:
+            case CONTINUE:
+                return token == jump;
+            case STATEMENTLIST:
+            case BLOCK:
+            case IF:
+                for(int i = 0; i < s.children(); i++) {
+                    if(jumpsOut(s.child(i), jump)) return true;     // (an if's tests are expressions - never true)
+                }
+                return false;
+            default:        // statements (including inner loops, whose break and continue are their own)
+                return false;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // walking statements - one walker for the passes which rewrite a program statement by statement
+
+    /** Rewrite the statements of a program, from the inside out: the statements in a list, an if's branches and a
+     *  loop's body are rewritten before the statement holding them is given to f.
+     * @param statement  statement or statement list.
+     * @param f  function returning the new version of a statement, null to remove it from its list,
+     *           or the statement itself if unchanged.
+     * @return the rewritten statement - statement itself if nothing changed.
+     */
+    static Tree<Token> mapStatements(Tree<Token> statement, UnaryOperator<Tree<Token>> f) {
+        return rewrite(statement, null, (s, previous) -> f.apply(s), e -> e, true);
+    }
+
+    /** As {@link #mapStatements(Tree, UnaryOperator)}, but f is also given the statement before it in its list
+     *  (as it was before rewriting), or null for the first statement of a list or one not in a list.
+     */
+    static Tree<Token> mapStatements(Tree<Token> statement, BiFunction<Tree<Token>, Tree<Token>, Tree<Token>> f) {
+        return rewrite(statement, null, f, e -> e, true);
+    }
+
+    /** As {@link #mapStatements(Tree, UnaryOperator)}, but without going into loops: f is given each outermost loop
+     *  as it is, and not the statements in it.
+     */
+    static Tree<Token> mapStatementsOutsideLoops(Tree<Token> statement, UnaryOperator<Tree<Token>> f) {
+        return rewrite(statement, null, (s, previous) -> f.apply(s), e -> e, false);
+    }
+
+    /** Apply a function to every expression in a statement (or list of statements), in the order they are evaluated
+     *  (but with a do/until's test before its body).
+     * @param statement  statement or statement list.
+     * @param f  function returning the new version of an expression, or the expression itself if unchanged.
+     * @return the statement with each expression replaced - statement itself if nothing changed.
+     */
+    static Tree<Token> mapExpressions(Tree<Token> statement, UnaryOperator<Tree<Token>> f) {
+        return rewrite(statement, null, (s, previous) -> s, f, true);
+    }
+
+    /** Apply a function to each child of a node, in turn.
+     * @param t  a tree.
+     * @param f  function returning the new version of a child, or the child itself if unchanged.
+     * @return a new node with the results as its children - or t itself if no child changed (or t is a leaf).
+     */
+    static Tree<Token> mapChildren(Tree<Token> t, UnaryOperator<Tree<Token>> f) {
+        if(t.isLeaf()) return t;
+        Tree<Token> copy = Tree.list(t.token());
+        boolean same = true;
+        for(Tree<Token> child : t.allChildren()) {
+            Tree<Token> c = f.apply(child);
+            same &= (c == child);
+            copy.addChild(c);
+        }
+        return same ? t : copy;
+    }
+
+    // the walker: expressions are mapped by e as they are met, statements by f once their parts are done
+    private static Tree<Token> rewrite(Tree<Token> s, Tree<Token> previous, BiFunction<Tree<Token>, Tree<Token>, Tree<Token>> f,
+                                       UnaryOperator<Tree<Token>> e, boolean intoLoops) {
+        if(s == null) return null;
+        Token token = s.token();
+        Tree<Token> t = s;
+        switch(token) {
+            case STATEMENTLIST:
+            case BLOCK: {
+                Tree<Token> list = Tree.list(token);
+                boolean same = true;
+                Tree<Token> before = null;
+                for(Tree<Token> u : s.allChildren()) {
+                    Tree<Token> v = rewrite(u, before, f, e, intoLoops);
+                    same &= (v == u);
+                    if(v != null) list.addChild(v);
+                    before = u;
+                }
+                if(!same) t = list;
+                break;
+            }
+            case IF: {
+                Tree<Token> ifTree = Tree.list(IF);
+                boolean same = true;
+                for(int i = 0; i < s.children(); i += 2) {
+                    Tree<Token> test = s.child(i);
+                    Tree<Token> newTest = (test == null) ? null : e.apply(test);
+                    Tree<Token> code = rewrite(s.child(i + 1), null, f, e, intoLoops);
+                    same &= (newTest == test && code == s.child(i + 1));
+                    ifTree.addChild(newTest);
+                    ifTree.addChild(code);
+                }
+                if(!same) t = ifTree;
+                break;
+            }
+            case WHILE:
+            case UNTIL: {
+                if(!intoLoops) break;
+                Tree<Token> test = s.child(0);
+                Tree<Token> newTest = (test == null) ? null : e.apply(test);
+                Tree<Token> body = rewrite(s.child(1), null, f, e, intoLoops);
+                if(newTest != test || body != s.child(1)) t = Tree.list(token, newTest, body);
+                break;
+            }
+            case ASSIGN: {
+                Tree<Token> value = e.apply(s.child(1));
+                if(value != s.child(1)) t = Tree.list(ASSIGN, s.child(0), value);
+                break;
+            }
+            case PRINT:
+            case PRINT_REPEAT:
+                t = mapChildren(s, e);
+                break;
+            default:        // read, break, continue, ++ and --
+                break;
+        }
+        return f.apply(t, previous);
+    }
+}
@@ -15,7 +15,11 @@
 
 package sal.small;
 
-import java.util.EnumSet;
+import sal.util.TokenBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static sal.small.Tree.*;
 import static sal.small.Main.*;
@@ -27,6 +31,11 @@ import static sal.small.Token.*;
  */
 public class Parse {
 
+    /** Factory used to build expression nodes.  Replace with a {@link Tree.Shared} to share
+     * identical subexpressions (call clear() on it when the compilation is finished).
+     */
+    static Tree.Factory<Token> nodes = new Tree.Factory<>();
+
 
     /**
      * Parse a program.
@@ -35,13 +44,107 @@ public class Parse {
      * @return AST for complete program.
      */
     public static Tree<Token> program() {
+        // large inputs are split into runs of top level statements, parsed in parallel
+        if(buffer().size() > parallelTokens && Runtime.getRuntime().availableProcessors() > 1) {
+            Tree<Token> t = parallelProgram();
+            if(t != null) return t;
+            // otherwise there is an error somewhere - parse again to report it
+        }
         // read the first token from the input
         scan();
         Tree<Token> t = statementList();	// a program consists of a sequence of statements
-        mustBe(EOF);
+        // anything left over is an 'end', 'else' or 'until' without a matching statement:
+        // report it, step over it and carry on with the statements after it
+        while(! mustBe(EOF)) {
+            scan();
+            for(Tree<Token> aStatement : statementList().allChildren()) t.addChild(aStatement);
+        }
         return t;
     }
 
+    /** Inputs with more tokens than this are parsed in parallel. */
+    static int parallelTokens = 50000;
+
+    /**
+     * Parse the program as a number of parts (each a run of top level statements) at the same time.
+     * @return AST for complete program, or null if any part could not be parsed cleanly.
+     */
+    static Tree<Token> parallelProgram() {
+        int size = buffer().size();
+        int partSize = Math.max(parallelTokens / 4, size / (4 * Runtime.getRuntime().availableProcessors()));
+        // divide the input at statement boundaries into parts of at least partSize tokens
+        List<Integer> starts = topLevelStatements();
+        List<int[]> parts = new ArrayList<>();
+        int partStart = 0;
+        for(int start : starts) {
+            if(start - partStart >= partSize) {
+                parts.add(new int[]{partStart, start});
+                partStart = start;
+            }
+        }
+        parts.add(new int[]{partStart, size});
+
+        List<Tree<Token>> lists = parts.parallelStream()
+                                       .map(part -> parsePart(part[0], part[1], Parse::statementList))
+                                       .collect(Collectors.toList());
+        Tree<Token> program = list(STATEMENTLIST);
+        for(Tree<Token> stList : lists) {
+            if(stList == null) return null;
+            for(Tree<Token> aStatement : stList.allChildren()) program.addChild(aStatement);
+        }
+        return program;
+    }
+
+    /**
+     * Pre-scan the tokens to find where each top level statement starts, by counting the
+     * statements which open a block against the 'end' or 'until' which closes it.
+     * @return positions of top level statements (in order).
+     */
+    static List<Integer> topLevelStatements() {
+        TokenBuffer<Token> tokens = buffer();
+        List<Integer> starts = new ArrayList<>();
+        int depth = 0;                  // number of open blocks
+        boolean whileNeedsDo = false;   // a while's test can't contain statements, so its 'do' is the next one
+        for(int i = 0, size = tokens.size(); i < size; i++) {
+            Token t = tokens.token(i);
+            if(t == DO && whileNeedsDo) {
+                whileNeedsDo = false;   // the 'do' of a while - the block is already open
+                continue;
+            }
+            if(depth == 0 && (t.isIn(BLOCK_START | SIMPLE_STATEMENT)
+                              || (t == IDENTIFIER && tokens.token(i + 1).isIn(ASSIGNMENT)))) {
+                starts.add(i);
+            }
+            switch(t) {
+                case WHILE: whileNeedsDo = true;
+                            // fall through
+                case IF:
+                case DO:    depth++;
+                            break;
+                case END:
+                case UNTIL: if(depth > 0) depth--;
+                            break;
+            }
+        }
+        return starts;
+    }
+
+    // tokens which begin a statement ending in 'end' or 'until'
+    private static final long BLOCK_START = set(IF, WHILE, DO);
+
+    // keywords beginning other statements
+    private static final long SIMPLE_STATEMENT = set(PRINT, READ, BREAK, CONTINUE);
+
+    // tokens after the name in an assignment
+    private static final long ASSIGNMENT = set(ASSIGN, INCREMENT, DECREMENT);
+
+    // tokens from which parsing can restart after an error
+    private static final long STATEMENT_SYNC = set(SEMICOLON, END, ELSE, UNTIL,
+                                                   IF, WHILE, DO, PRINT, READ, BREAK, CONTINUE);
+
+    // tokens which can begin a statement
+    private static final long STATEMENT_START = set(IF, WHILE, DO, PRINT, IDENTIFIER, READ, BREAK, CONTINUE);
+
     /**
      *  Return a list of parsed statements.
      *  Grammar rule {@code statementList   : ( ifStatement | whileStatement  | doStatement
@@ -52,6 +155,8 @@ public class Parse {
     public static Tree<Token> statementList() {
         Tree<Token> stList = list(STATEMENTLIST);
 		for(;;) {
+			// after an error skip to somewhere a statement can start (or the list can end)
+			if(recovering()) synchronise(STATEMENT_SYNC);
 			while(skipToken(SEMICOLON) ) /* do nothing */;
 			Tree<Token> aStatement;	// next statement
 			Token token = currentToken();
@@ -68,7 +173,14 @@ public class Parse {
 								scan();
 								break;
 
-             default :          return stList;	// exit method with list
+			case END:
+			case ELSE:
+			case UNTIL:
+			case EOF:			return stList;	// exit method with list
+
+             default :          // not a statement: report it and skip on to the next one
+								mustBe(STATEMENT_START);
+								continue;
 			}
 			// add next statement to list
 			stList.addChild(aStatement);
@@ -195,7 +307,7 @@ public class Parse {
      * @return AST.
      */
     public static Tree<Token> assignment() {
-        Tree<Token> t =leaf(IDENTIFIER, currentText());
+        Tree<Token> t =nodes.leaf(IDENTIFIER, currentText());
         Token token = scan();
         if(skipToken(INCREMENT, DECREMENT)) {
 			t = list(token, t);
@@ -217,7 +329,7 @@ public class Parse {
     // start with lowest priority <, <= etc
 
  
- private static final EnumSet<Token> RELATIONALOPS = EnumSet.of(LE, LT, GE, GT, EQ, NE);
+ private static final long RELATIONALOPS = set(LE, LT, GE, GT, EQ, NE);
      /**
      *  Grammar rule {@code  relopExpression : addExpression [ ('<' | '<=' | '==' | '!=' | '<=' | '<' ) addExpression ] }
      * @return AST.
@@ -225,15 +337,15 @@ public class Parse {
     public static Tree<Token> relopExpression() {
         Tree<Token> t = addExpression();
         Token tok = currentToken();
-        if(RELATIONALOPS.contains(tok)) {
+        if(tok.isIn(RELATIONALOPS)) {
             scan();
-            t = list(tok, t, addExpression());
+            t = nodes.list(tok, t, addExpression());
         }
         return t;
 
     }
 
-    private static final EnumSet<Token> ADDOPS = EnumSet.of(PLUS, MINUS);
+    private static final long ADDOPS = set(PLUS, MINUS);
 
     /**
      * Grammar rule {@code addExpression   : multExpression ( ('+' | '-') multExpression )*}
@@ -241,15 +353,15 @@ public class Parse {
      */
     public static Tree<Token> addExpression() {
         Tree<Token> t = multExpression();
-        for(Token tok = currentToken(); ADDOPS.contains(tok); tok = currentToken()) {
+        for(Token tok = currentToken(); tok.isIn(ADDOPS); tok = currentToken()) {
             scan();
-            t = list(tok, t, multExpression());
+            t = nodes.list(tok, t, multExpression());
         }
         return t;
     }
 
     
-    private static final EnumSet<Token> MULTOPS = EnumSet.of(TIMES, DIVIDE, MOD, SHR, SHL, SHRS);
+    private static final long MULTOPS = set(TIMES, DIVIDE, MOD, SHR, SHL, SHRS);
 
     /**
      * Grammar rule {@code multExpression  : term ( ('*' | '/' | '%' ) term )* }
@@ -257,13 +369,16 @@ public class Parse {
      */
     public static Tree<Token> multExpression() {
         Tree<Token> t = term();
-        for(Token tok = currentToken(); MULTOPS.contains(tok); tok = currentToken()) {
+        for(Token tok = currentToken(); tok.isIn(MULTOPS); tok = currentToken()) {
             scan();
-            t = list(tok, t, term());
+            t = nodes.list(tok, t, term());
         }
         return t;
     }
 
+    // tokens which can begin a term
+    private static final long TERM_START = set(IDENTIFIER, NUMBER, STRING, MINUS, LP, TO_INT, TO_STR, LEN_STR);
+
     /**
      * Grammar rule {@code term            : '(' expression ')' | name | number | '-' term}
      * @return AST.
@@ -280,41 +395,90 @@ public class Parse {
                             return t;
             
 			
-            case IDENTIFIER:
-            case STRING:  t = leaf(token, value); break;
+            case IDENTIFIER: t = nodes.leaf(token, value); break;
+
+            case STRING:    t = nodes.stringLeaf(token, unquote(value)); break;
             
             case NUMBER :	
-							{	if(value.charAt(0) == '#') {
-									// convert string after '#' to binary, then back to decimal as a string
-									value = Integer.toString(Integer.valueOf(value.substring(1), 16));
+							{	// convert the text to an int once, here - '#' introduces a hex number
+								int number = 0;
+								try {
+									number = (value.charAt(0) == '#') ? Integer.parseInt(value.substring(1), 16)
+																	  : Integer.parseInt(value);
+								} catch (NumberFormatException e) {
+									parseError("Number %s is too large\n", value);
 								}
-								t = leaf(token, value);
+								t = nodes.leaf(token, number);
 								break; 
 							}
 			
 			case MINUS:     scan();	// step over operator
-							return list(NEGATE, term());
+							return nodes.list(NEGATE, term());
 							
 			case TO_STR:    scan();
-			                return list(TO_STR, term());
+			                return nodes.list(TO_STR, term());
 			                
 			case TO_INT:    scan();
-			                return list(TO_INT, term());
+			                return nodes.list(TO_INT, term());
 			                
 			case LEN_STR:   scan();
-			                return list(LEN_STR, term());
+			                return nodes.list(LEN_STR, term());
 	        
 			//case STRING:    
 
-            default :       mustBe(IDENTIFIER, NUMBER, MINUS,
-									LP, TO_INT, TO_STR, LEN_STR);  // didn't find the start of an expression - there has to be one;
-							break;
+            default :       mustBe(TERM_START);  // didn't find the start of an expression - there has to be one;
+							return t;	// leave the token for error recovery to deal with
 
         }
         scan();
         return t;
     }
 
+    /**
+     * Remove the quotes from a string literal and replace escape sequences by the characters they represent.
+     * @param text the literal as it appears in the source.
+     * @return the decoded string.
+     */
+    static String unquote(String text) {
+        int end = text.length() - 1;
+        StringBuilder sb = new StringBuilder(end);
+        for(int i = 1; i < end; i++) {
+            char ch = text.charAt(i);
+            if(ch == '\\' && i + 1 < end) {
+                char next = text.charAt(++i);
+                switch(next) {
+                    case 'n':   ch = '\n';   break;
+                    case 't':   ch = '\t';   break;
+                    case 'r':   ch = '\r';   break;
+                    case 'b':   ch = '\b';   break;
+                    case 'f':   ch = '\f';   break;
+                    case '\\':  ch = '\\';   break;
+                    case '\'':  ch = '\'';   break;
+                    case 'u':   if(i + 4 < end) {
+                                    try {
+                                        ch = (char) Integer.parseInt(text.substring(i + 1, i + 5), 16);
+                                        i += 4;
+                                        break;
+                                    } catch (NumberFormatException e) { /* not an escape: keep as typed */ }
+                                }
+                                // fall through
+                    default:    if(next >= '0' && next <= '7') {   // octal, up to 3 digits
+                                    int code = next - '0';
+                                    for(int n = 1; n < 3 && i + 1 < end && text.charAt(i + 1) >= '0' && text.charAt(i + 1) <= '7'; n++) {
+                                        code = code * 8 + text.charAt(++i) - '0';
+                                    }
+                                    ch = (char) code;
+                                    break;
+                                }
+                                sb.append('\\');
+                                ch = next;
+                }
+            }
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
 
 }
 
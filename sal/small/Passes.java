@@ -0,0 +1,146 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToIntBiFunction;
+import java.util.function.UnaryOperator;
+
+/** A pass manager: a list of named passes run in turn over a program - an AST or a {@link Graph}.
+ *
+ * A pass is a function from the program to the changed program (which may be the same object, changed in place),
+ * registered with the least optimisation {@link #level} it is made at.  A pass can also be turned off
+ * ({@link #disabled}) or on ({@link #enabled}) by name, whatever the level.
+ * A step (see {@link #step}) is a part of the list which is always made - it can't be turned off, and isn't a pass.
+ * If {@link #report} is set, each pass or step made prints its wall time and the number of rewrites it made.
+ */
+public class Passes<T> {
+
+    /** The optimisation level: 0 for none (fastest compile), 1 the default, 2 for everything. */
+    public static int level = 1;
+
+    /** The names of passes not made, whatever the level. */
+    public static final Set<String> disabled = new HashSet<>();
+
+    /** The names of passes made, whatever the level (unless disabled). */
+    public static final Set<String> enabled = new HashSet<>();
+
+    /** If set, each pass made reports what it did. */
+    public static boolean report = false;
+
+    private static int rewrites = 0;
+
+    /**
+     * Check whether a pass (or anything else optional) is made.
+     * @param name  the pass's name.
+     * @param least  the least level it is made at.
+     * @return true if it is made.
+     */
+    public static boolean isOn(String name, int least) {
+        return !disabled.contains(name) && (level >= least || enabled.contains(name));
+    }
+
+    /** Count the rewrites made by a pass which counts its own (see {@link #Passes(ToIntBiFunction)}).
+     * @param n  the number made.
+     */
+    static void rewrote(int n) {
+        rewrites += n;
+    }
+
+    private static final int ALWAYS = -1;      // the level of a step
+
+    private static class Pass<T> {
+        final String name;
+        final int level;
+        final UnaryOperator<T> pass;
+
+        Pass(String name, int level, UnaryOperator<T> pass) {
+            this.name = name;
+            this.level = level;
+            this.pass = pass;
+        }
+    }
+
+    private final List<Pass<T>> passes = new ArrayList<>();
+    private final ToIntBiFunction<T, T> changes;
+
+    /**
+     * Make an empty list of passes.
+     * @param changes  counts the rewrites from one program to another - or null if the passes change the program
+     *                 in place, and count their own rewrites with {@link #rewrote(int)}.
+     */
+    public Passes(ToIntBiFunction<T, T> changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * Add a pass to the end of the list.
+     * @param name  the pass's name.
+     * @param least  the least level it is made at.
+     * @param pass  the pass.
+     * @return this list.
+     */
+    public Passes<T> add(String name, int least, UnaryOperator<T> pass) {
+        passes.add(new Pass<>(name, least, pass));
+        return this;
+    }
+
+    /**
+     * Add a step to the end of the list - it is always made, and is timed and reported like a pass.
+     * @param name  the step's name.
+     * @param step  the step.
+     * @return this list.
+     */
+    public Passes<T> step(String name, UnaryOperator<T> step) {
+        passes.add(new Pass<>(name, ALWAYS, step));
+        return this;
+    }
+
+    /** @return the names of the passes (not the steps), in order. */
+    public List<String> names() {
+        List<String> names = new ArrayList<>();
+        for(Pass<T> p : passes) {
+            if(p.level != ALWAYS) names.add(p.name);
+        }
+        return names;
+    }
+
+    /**
+     * Run the passes which are on.
+     * @param program  the program.
+     * @return the program after the last pass.
+     */
+    public T run(T program) {
+        for(Pass<T> p : passes) {
+            if(p.level != ALWAYS && !isOn(p.name, p.level)) continue;
+            if(!report) {
+                program = p.pass.apply(program);
+                continue;
+            }
+            T before = program;
+            rewrites = 0;
+            long start = System.nanoTime();
+            program = p.pass.apply(program);
+            long time = System.nanoTime() - start;
+            if(changes != null) rewrites = changes.applyAsInt(before, program);
+            System.out.printf("  %-16s %10.3f ms %7d rewrites\n", p.name, time / 1e6, rewrites);
+        }
+        return program;
+    }
+}
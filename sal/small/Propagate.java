@@ -0,0 +1,349 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Constant and copy propagation, then dead store elimination.
+ *
+ * Going forwards through the program, each variable known to hold a constant, or the same value as another variable,
+ * is replaced by that constant or variable (and the expression folded again).  At the end of an if, only what is known
+ * after every branch is kept; a loop starts by forgetting everything about the variables it changes.
+ *
+ * Then, going backwards, a store to a variable which isn't read before it is next stored (or goes out of scope) is removed.
+ * The store declaring a variable is kept if the name is used again (a later store in an inner scope would otherwise
+ * declare a variable of its own), but a constant is stored instead of the value.
+ * No store is removed if working out its value could divide by zero.
+ */
+public class Propagate {
+
+    /**
+     * Propagate constants and copies through a program and remove the stores that are no longer needed.
+     * @param tree  AST for the program.
+     * @return the changed AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        Propagate p = new Propagate();
+        tree = p.forward(tree, new Facts());
+        return p.backward(tree, new HashSet<>(), null, null, true);
+    }
+
+    // the stores which declare a variable
+    private final Set<Tree<Token>> declaring = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // the variables used or changed after the point reached going backwards
+    private final Set<String> mentionedLater = new HashSet<>();
+
+    // the names declared in each open scope, innermost first
+    private final Deque<Set<String>> scopes = new ArrayDeque<>();
+
+    private Propagate() {
+        scopes.push(new HashSet<>());
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // what is known about variables at a point in the program
+
+    private static class Facts {
+        final Map<String, Tree<Token>> value = new HashMap<>();        // a constant, or a variable with the same value
+        final Map<String, Set<String>> copies = new HashMap<>();       // the variables known to be copies of each variable
+
+        Facts copy() {
+            Facts f = new Facts();
+            f.value.putAll(value);
+            for(Map.Entry<String, Set<String>> e : copies.entrySet()) f.copies.put(e.getKey(), new HashSet<>(e.getValue()));
+            return f;
+        }
+
+        void setTo(Facts other) {
+            value.clear();
+            value.putAll(other.value);
+            copies.clear();
+            copies.putAll(other.copies);
+        }
+
+        // a variable has changed - forget what is known about it, and about variables holding the same value
+        void kill(String name) {
+            forget(name);
+            Set<String> same = copies.remove(name);
+            if(same != null) {
+                for(String copy : same) value.remove(copy);
+            }
+        }
+
+        private void forget(String name) {
+            Tree<Token> old = value.remove(name);
+            if(isVariable(old)) {
+                Set<String> same = copies.get(old.toString());
+                if(same != null) same.remove(name);
+            }
+        }
+
+        void set(String name, Tree<Token> v) {
+            value.put(name, v);
+            if(isVariable(v)) copies.computeIfAbsent(v.toString(), k -> new HashSet<>()).add(name);
+        }
+
+        // keep only what is also known in other
+        void join(Facts other) {
+            for(String name : new ArrayList<>(value.keySet())) {
+                Tree<Token> v = other.value.get(name);
+                if(v == null || !same(v, value.get(name))) forget(name);
+            }
+        }
+    }
+
+    private static boolean same(Tree<Token> a, Tree<Token> b) {
+        if(isNumber(a) && isNumber(b)) return intValue(a) == intValue(b);
+        if(isStringLiteral(a) && isStringLiteral(b)) return stringValue(a).equals(stringValue(b));
+        return isVariable(a) && isVariable(b) && a.toString().equals(b.toString());
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // forwards: propagation
+
+    private Tree<Token> forward(Tree<Token> s, Facts facts) {
+        if(s == null) return null;
+        Token token = s.token();
+        switch(token) {
+            case STATEMENTLIST: {
+                Tree<Token> list = Tree.list(STATEMENTLIST);
+                for(Tree<Token> t : s.allChildren()) list.addChild(forward(t, facts));
+                return list;
+            }
+            case BLOCK: {
+                scopes.push(new HashSet<>());
+                Tree<Token> list = Tree.list(BLOCK);
+                for(Tree<Token> t : s.allChildren()) list.addChild(forward(t, facts));
+                endScope(facts);
+                return list;
+            }
+            case ASSIGN: {
+                String name = s.child(0).toString();
+                Tree<Token> e = Fold.expression(substitute(s.child(1), facts));
+                Tree<Token> assign = Tree.list(ASSIGN, s.child(0), e);
+                if(declare(name)) declaring.add(assign);
+                facts.kill(name);
+                boolean typesMatch = isStringName(name) == isStringExpression(e);
+                if(typesMatch && (isConstant(e) || (isVariable(e) && !e.toString().equals(name)))) facts.set(name, e);
+                return assign;
+            }
+            case READ_INT:
+            case READ_STR:
+                declare(s.toString());
+                facts.kill(s.toString());
+                return s;
+            case INCREMENT:
+            case DECREMENT: {
+                String name = s.child(0).toString();
+                Tree<Token> old = facts.value.get(name);
+                facts.kill(name);
+                if(isNumber(old)) facts.set(name, number(intValue(old) + (token == INCREMENT ? 1 : -1)));
+                return s;
+            }
+            case PRINT:
+                return Tree.list(PRINT, Fold.expression(substitute(s.child(0), facts)));
+            case PRINT_REPEAT:
+                return Tree.list(PRINT_REPEAT, Fold.expression(substitute(s.child(0), facts)),
+                                               Fold.expression(substitute(s.child(1), facts)));
+            case IF: {
+                scopes.push(new HashSet<>());      // one scope for the whole if
+                Tree<Token> ifTree = Tree.list(IF);
+                Facts after = null;
+                boolean hasElse = false;
+                for(int i = 0; i < s.children(); i += 2) {
+                    Tree<Token> test = s.child(i);
+                    hasElse |= (test == null);
+                    ifTree.addChild(test == null ? null : Fold.expression(substitute(test, facts)));
+                    Facts branch = facts.copy();
+                    ifTree.addChild(forward(s.child(i + 1), branch));
+                    if(after == null) after = branch; else after.join(branch);
+                }
+                if(!hasElse) after.join(facts);     // the if may do nothing
+                facts.setTo(after);
+                endScope(facts);
+                return ifTree;
+            }
+            case WHILE:
+            case UNTIL: {
+                scopes.push(new HashSet<>());
+                Set<String> changed = new HashSet<>();
+                assignedIn(s, changed);
+                for(String name : changed) facts.kill(name);
+                // what is left is true everywhere in the loop, and after it
+                Tree<Token> test = s.child(0);
+                if(test != null) test = Fold.expression(substitute(test, facts));
+                Tree<Token> body = forward(s.child(1), facts.copy());
+                endScope(facts);
+                return Tree.list(token, test, body);
+            }
+            default:        // break, continue
+                return s;
+        }
+    }
+
+    // note a variable is stored to, returning true if this declares it
+    private boolean declare(String name) {
+        for(Set<String> scope : scopes) {
+            if(scope.contains(name)) return false;
+        }
+        scopes.peek().add(name);
+        return true;
+    }
+
+    // the variables declared in a scope no longer exist after it
+    private void endScope(Facts facts) {
+        for(String name : scopes.pop()) facts.kill(name);
+    }
+
+    private static Tree<Token> substitute(Tree<Token> e, Facts facts) {
+        if(e == null) return null;
+        if(e.token() == IDENTIFIER) {
+            Tree<Token> v = facts.value.get(e.toString());
+            return (v == null) ? e : v;
+        }
+        return mapChildren(e, child -> substitute(child, facts));
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // backwards: dead store elimination
+
+    /* Work out the variables live before a statement from those live after it (live is changed to give them).
+       breakLive and continueLive are the variables live where a break or continue in the statement goes.
+       If rewrite is false the statement is only analysed (as it will be when loops are being worked out).
+       Returns the statement without its dead stores, or null if there's nothing left of it.
+     */
+    private Tree<Token> backward(Tree<Token> s, Set<String> live, Set<String> breakLive, Set<String> continueLive, boolean rewrite) {
+        if(s == null) return null;
+        Token token = s.token();
+        switch(token) {
+            case STATEMENTLIST:
+            case BLOCK: {
+                List<Tree<Token>> kept = new ArrayList<>();
+                for(int i = s.children() - 1; i >= 0; i--) {
+                    Tree<Token> t = backward(s.child(i), live, breakLive, continueLive, rewrite);
+                    if(t != null) kept.add(t);
+                }
+                if(!rewrite) return s;
+                Collections.reverse(kept);
+                Tree<Token> list = Tree.list(token);
+                for(Tree<Token> t : kept) list.addChild(t);
+                return list;
+            }
+            case ASSIGN: {
+                String name = s.child(0).toString();
+                Tree<Token> e = s.child(1);
+                boolean typesMatch = isStringName(name) == isStringExpression(e);
+                if(!live.contains(name) && typesMatch && !canTrap(e)) {
+                    if(!declaring.contains(s) || (rewrite && !mentionedLater.contains(name))) return null;
+                    // the value isn't used, but the store is still needed to declare the variable
+                    if(!isConstant(e)) e = isStringName(name) ? string("") : number(0);
+                }
+                live.remove(name);
+                variables(e, live);
+                if(rewrite) {
+                    mentionedLater.add(name);
+                    variables(e, mentionedLater);
+                }
+                return (e == s.child(1)) ? s : Tree.list(ASSIGN, s.child(0), e);
+            }
+            case READ_INT:
+            case READ_STR:
+                live.remove(s.toString());
+                if(rewrite) mentionedLater.add(s.toString());
+                return s;
+            case INCREMENT:
+            case DECREMENT:
+                if(!live.contains(s.child(0).toString())) return null;
+                if(rewrite) mentionedLater.add(s.child(0).toString());
+                return s;
+            case PRINT:
+            case PRINT_REPEAT:
+                variables(s, live);
+                if(rewrite) variables(s, mentionedLater);
+                return s;
+            case BREAK:
+            case CONTINUE: {
+                Set<String> target = (token == BREAK) ? breakLive : continueLive;
+                live.clear();
+                if(target != null) live.addAll(target);
+                return s;
+            }
+            case IF: {
+                Set<String> after = new HashSet<>(live);
+                Tree<Token> ifTree = Tree.list(IF);
+                boolean hasElse = false;
+                for(int i = 0; i < s.children(); i += 2) {
+                    Tree<Token> test = s.child(i);
+                    hasElse |= (test == null);
+                    Set<String> branch = new HashSet<>(after);
+                    Tree<Token> code = backward(s.child(i + 1), branch, breakLive, continueLive, rewrite);
+                    if(i == 0) live.clear();
+                    live.addAll(branch);
+                    variables(test, live);
+                    if(rewrite) variables(test, mentionedLater);
+                    ifTree.addChild(test);
+                    ifTree.addChild(code == null ? Tree.list(STATEMENTLIST) : code);
+                }
+                if(!hasElse) live.addAll(after);
+                return rewrite ? ifTree : s;
+            }
+            case WHILE:
+            case UNTIL: {
+                Set<String> after = new HashSet<>(live);
+                Tree<Token> test = s.child(0);
+                // find the variables live where the test is made, repeating until nothing more is found
+                Set<String> atTest = new HashSet<>();
+                while(true) {
+                    Set<String> start = loopStart(s, atTest, after, false);
+                    Set<String> next = new HashSet<>(after);
+                    variables(test, next);
+                    if(token == UNTIL || test != null) next.addAll(start);
+                    if(test == null) next = start;      // do/end: only break leaves the loop
+                    if(next.equals(atTest)) break;
+                    atTest = next;
+                }
+                if(rewrite) variables(s, mentionedLater);      // everything in a loop may come after anything else in it
+                Tree<Token> body = (rewrite) ? backward(s.child(1), new HashSet<>(atTest), after, atTest, true) : s.child(1);
+                live.clear();
+                live.addAll(token == UNTIL ? loopStart(s, atTest, after, false) : atTest);
+                if(!rewrite) return s;
+                return Tree.list(token, test, body == null ? Tree.list(STATEMENTLIST) : body);
+            }
+            default:
+                return s;
+        }
+    }
+
+    // the variables live at the start of a loop's body, given those live at its test and after it
+    private Set<String> loopStart(Tree<Token> loop, Set<String> atTest, Set<String> after, boolean rewrite) {
+        Set<String> start = new HashSet<>(atTest);
+        backward(loop.child(1), start, after, atTest, rewrite);
+        return start;
+    }
+}
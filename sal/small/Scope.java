@@ -168,13 +168,36 @@ public class Scope extends HashMap<String, Descriptor > {
     }
 
 
-    public static Variable newLocal(String key, String typeName) {
-        // allocate the next local variable number
+    // slots chosen for the program's variables (see Slots), in the order they will be declared
+    static String[] plannedNames = new String[0];
+    static int[] plannedSlots = new int[0];
+    static int nextPlanned = 0;
+
+    /**
+     * Give the program's variables the slots chosen by {@link Slots} rather than a new slot each.
+     * @param names  variable names in the order they will be declared.
+     * @param slots  the slot for each.
+     * @param slotCount  number of slots used - other locals are put after these.
+     */
+    public static void planLocals(String[] names, int[] slots, int slotCount) {
+        plannedNames = names;
+        plannedSlots = slots;
+        nextPlanned = 0;
         Integer nextLocal = getValue(NEXT_LOCAL);
-        int localVal = nextLocal + 1;
-        newValue(NEXT_LOCAL, localVal);
+        if(slotCount > nextLocal) newValue(NEXT_LOCAL, slotCount);
+    }
+
+    public static Variable newLocal(String key, String typeName) {
+        Integer slot;
+        if(nextPlanned < plannedNames.length && plannedNames[nextPlanned].equals(key)) {
+            slot = plannedSlots[nextPlanned++];
+        } else {
+            // allocate the next local variable number
+            slot = getValue(NEXT_LOCAL);
+            newValue(NEXT_LOCAL, slot + 1);
+        }
         // now create the local variable
-        Variable v = Local(nextLocal.toString(), typeName);
+        Variable v = Local(slot.toString(), typeName);
         currentScope.put(key, v);
         return v;
     }
@@ -183,6 +206,27 @@ public class Scope extends HashMap<String, Descriptor > {
         return newLocal(key, isStringName(key) ? "~" : "I");
     }
 
+    /**
+     * Declare a variable held in a static field of the class being generated.
+     * @param key  the variable's name - also used as the name of the field.
+     * @param className  the class being generated.
+     * @return the variable's descriptor.
+     */
+    public static Variable newStatic(String key, String className) {
+        Variable v = Static(className + "/" + fieldName(key), isStringName(key) ? "~" : "I");
+        currentScope.put(key, v);
+        return v;
+    }
+
+    /**
+     * @param key  a variable's name.
+     * @return the name of the static field for it - compiler temporaries start with '#', which the JVM doesn't allow,
+     * so that becomes '_' (which can't start a program's name).
+     */
+    public static String fieldName(String key) {
+        return key.replace('#', '_');
+    }
+
     public static Variable getVariable(String key) {
         Descriptor d = getAny(key);
         return (d != null && d instanceof Descriptor.Variable) ? (Variable) d : null;
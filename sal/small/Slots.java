@@ -0,0 +1,298 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import sal.small.Graph.Block;
+
+import static sal.small.Token.*;
+
+/** Choose the local variable slot for each variable of a program from its live range.
+ *
+ * The program is walked in the order {@link CodeGen} generates it, opening scopes in the same places,
+ * so each variable declaration is found in the order code generation will make it.
+ * Each point where a variable is read or written is numbered; a variable is live from its declaration to its
+ * last use, and a variable declared outside a loop but used in it is live until the end of the loop
+ * (its value is needed on the next time round).  Variables of the same type (int or String) whose live
+ * ranges don't overlap then share a slot.
+ * A variable which may be read before it is stored (on some path its declaring store doesn't come first - as in
+ * {@code if a > 0 then x = 1 else print x end}) gets a slot no other variable has used before it,
+ * so the JVM's verifier still rejects the program instead of reading another variable's old value.
+ *
+ * A program's {@link Graph} has no scopes, so {@link #plan(Graph)} works from its liveness instead: variables of the
+ * same type share a slot unless one is set where the other is live.
+ */
+public class Slots {
+
+    // one variable declaration
+    private static class Range {
+        final String name;
+        final boolean isString;
+        final int start;
+        int end;
+        int slot;
+        boolean readFirst;      // may be read before it is stored
+
+        Range(String name, int start) {
+            this.name = name;
+            this.isString = isStringName(name);
+            this.start = this.end = start;
+        }
+    }
+
+    private final List<Range> ranges = new ArrayList<>();       // in order of declaration
+    private final List<int[]> loops = new ArrayList<>();        // first and last point, in order of their ends
+    private final Deque<Map<String, Range>> scopes = new ArrayDeque<>();
+    private int point = 0;
+
+    // the variables certainly stored by now, and at each 'continue' of the loops the walk is in, innermost first
+    private Set<Range> stored = new HashSet<>();
+    private final Deque<List<Set<Range>>> continued = new ArrayDeque<>();
+
+    private Slots() {
+        scopes.push(new HashMap<>());
+    }
+
+    /**
+     * Work out the slots for a program's variables and pass them to {@link Scope#planLocals}.
+     * Call at the start of a method (when any arguments have been declared), before generating its code.
+     * @param tree  AST for the program, or the part of it in the method.
+     */
+    public static void plan(Tree<Token> tree) {
+        Slots slots = new Slots();
+        slots.statement(tree);
+        int slotCount = slots.allocate();
+        String[] names = new String[slots.ranges.size()];
+        int[] slotOf = new int[names.length];
+        for(int i = 0; i < names.length; i++) {
+            names[i] = slots.ranges.get(i).name;
+            slotOf[i] = slots.ranges.get(i).slot;
+        }
+        Scope.planLocals(names, slotOf, slotCount);
+    }
+
+    /**
+     * Work out the slots for the variables of a program's graph and pass them to {@link Scope#planLocals}, in the
+     * order {@link CodeGen#writeGraphCode(Graph)} declares them ({@link Graph#variables()}).
+     * A variable live where the program starts may be read before it is stored, and gets a slot of its own.
+     * @param graph  the graph, not in SSA form.
+     */
+    public static void plan(Graph graph) {
+        Map<Block, Set<String>> liveIn = graph.liveIn();
+        Map<String, Set<String>> interferes = new HashMap<>();
+        for(Block b : graph.blocks) {
+            Set<String> live = new HashSet<>();
+            for(Block s : b.successors()) live.addAll(liveIn.get(s));
+            Graph.reads(b.test, live);
+            for(int i = b.code.size() - 1; i >= 0; i--) {
+                Tree<Token> s = b.code.get(i);
+                String target = Graph.target(s);
+                if(target != null) {
+                    live.remove(target);
+                    for(String other : live) {
+                        interferes.computeIfAbsent(target, k -> new HashSet<>()).add(other);
+                        interferes.computeIfAbsent(other, k -> new HashSet<>()).add(target);
+                    }
+                }
+                Graph.reads(s, live);
+            }
+        }
+        Set<String> readFirst = liveIn.get(graph.entry);
+        List<Integer> intSlots = new ArrayList<>();
+        List<Integer> stringSlots = new ArrayList<>();
+        Map<String, Integer> slotOf = new HashMap<>();
+        int slotCount = Scope.getValue(Scope.NEXT_LOCAL);
+        String[] names = graph.variables().toArray(new String[0]);
+        int[] slots = new int[names.length];
+        for(int i = 0; i < names.length; i++) {
+            String name = names[i];
+            Integer slot = null;
+            if(!readFirst.contains(name)) {
+                // the first slot of the type which no variable interfering with this one has
+                Set<Integer> taken = new HashSet<>();
+                for(String other : interferes.getOrDefault(name, new HashSet<>())) {
+                    Integer t = slotOf.get(other);
+                    if(t != null) taken.add(t);
+                }
+                List<Integer> ofType = isStringName(name) ? stringSlots : intSlots;
+                for(Integer t : ofType) {
+                    if(!taken.contains(t)) {
+                        slot = t;
+                        break;
+                    }
+                }
+                if(slot == null) ofType.add(slot = slotCount++);
+            } else {
+                slot = slotCount++;
+            }
+            slotOf.put(name, slot);
+            slots[i] = slot;
+        }
+        Scope.planLocals(names, slots, slotCount);
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // finding the live ranges
+
+    private void statement(Tree<Token> tree) {
+        if(tree == null) return;
+        switch(tree.token()) {
+            case STATEMENTLIST:
+                for(Tree<Token> s : tree.allChildren()) statement(s);
+                return;
+            case BLOCK:
+                scopes.push(new HashMap<>());
+                for(Tree<Token> s : tree.allChildren()) statement(s);
+                scopes.pop();
+                return;
+            case INCREMENT:
+            case DECREMENT:
+                read(tree.child(0).toString());
+                store(tree.child(0).toString());
+                return;
+            case ASSIGN:
+                expression(tree.child(1));
+                store(tree.child(0).toString());
+                return;
+            case READ_INT:
+            case READ_STR:
+                store(tree.toString());
+                return;
+            case PRINT:
+                expression(tree.child(0));
+                return;
+            case PRINT_REPEAT:
+                expression(tree.child(0));
+                expression(tree.child(1));
+                return;
+            case IF: {
+                scopes.push(new HashMap<>());      // one scope for the whole if
+                Set<Range> atTest = stored;        // each test is reached only by the tests before it failing
+                Set<Range> after = null;
+                boolean hasElse = false;
+                for(int i = 0; i < tree.children(); i += 2) {
+                    hasElse |= (tree.child(i) == null);
+                    stored = atTest;
+                    expression(tree.child(i));
+                    stored = new HashSet<>(atTest);
+                    statement(tree.child(i + 1));
+                    if(after == null) after = stored; else after.retainAll(stored);
+                }
+                if(!hasElse) after.retainAll(atTest);      // the if may do nothing
+                stored = after;
+                scopes.pop();
+                return;
+            }
+            case WHILE:
+            case UNTIL: {
+                scopes.push(new HashMap<>());
+                int first = ++point;
+                Tree<Token> test = tree.child(0);
+                if(tree.token() == WHILE) expression(test);      // a while's test is made before and after the body
+                Set<Range> before = stored;
+                stored = new HashSet<>(before);
+                continued.push(new ArrayList<>());
+                statement(tree.child(1));
+                for(Set<Range> atContinue : continued.pop()) stored.retainAll(atContinue);
+                expression(test);
+                stored = before;        // the body may not be run, or be left by 'break'
+                loops.add(new int[]{first, ++point});
+                scopes.pop();
+                return;
+            }
+            case CONTINUE:
+                // the test is reached with what is stored here too
+                if(!continued.isEmpty()) continued.peek().add(new HashSet<>(stored));
+                return;
+            default:        // break
+                return;
+        }
+    }
+
+    private void expression(Tree<Token> e) {
+        if(e == null) return;
+        if(e.token() == IDENTIFIER) {
+            read(e.toString());
+        } else {
+            for(int i = 0; i < e.children(); i++) expression(e.child(i));
+        }
+    }
+
+    private void read(String name) {
+        Range r = touch(name);
+        if(r != null && !stored.contains(r)) r.readFirst = true;
+    }
+
+    private void store(String name) {
+        Range r = touch(name);
+        if(r != null) stored.add(r);
+    }
+
+    // a variable is used at the next point - declaring it if it isn't in scope (as code generation does)
+    private Range touch(String name) {
+        point++;
+        Range r = null;
+        for(Map<String, Range> scope : scopes) {
+            r = scope.get(name);
+            if(r != null) break;
+        }
+        if(r == null) {
+            if(Scope.getVariable(name) != null) return null;       // declared before the code (e.g. a static field)
+            r = new Range(name, point);
+            scopes.peek().put(name, r);
+            ranges.add(r);
+        }
+        r.end = point;
+        return r;
+    }
+
+    ///////////////////////////////////////////////////////////////////////
+    // allocating slots
+
+    // give each range a slot, returning the number of slots used
+    private int allocate() {
+        // variables declared before a loop and used in it are needed all the way round it
+        for(int[] loop : loops) {
+            for(Range r : ranges) {
+                if(r.start < loop[0] && r.end >= loop[0] && r.end < loop[1]) r.end = loop[1];
+            }
+        }
+        PriorityQueue<Range> active = new PriorityQueue<>((a, b) -> Integer.compare(a.end, b.end));
+        TreeSet<Integer> freeInts = new TreeSet<>();
+        TreeSet<Integer> freeStrings = new TreeSet<>();
+        int slotCount = Scope.getValue(Scope.NEXT_LOCAL);      // after the method's arguments
+        for(Range r : ranges) {     // ranges are in order of their starts
+            while(!active.isEmpty() && active.peek().end < r.start) {
+                Range done = active.poll();
+                (done.isString ? freeStrings : freeInts).add(done.slot);
+            }
+            Integer slot = r.readFirst ? null : (r.isString ? freeStrings : freeInts).pollFirst();
+            r.slot = (slot != null) ? slot : slotCount++;
+            active.add(r);
+        }
+        return slotCount;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import sal.small.Graph.Block;
+import sal.small.Graph.Phi;
+
+import static sal.small.Optimise.*;
+
+/** Putting a {@link Graph} into SSA (static single assignment) form, and taking it out again.
+ *
+ * In SSA form each assignment (or read) sets a version of its variable of its own - {@code x.1}, {@code x.2}... -
+ * and each use names the one version which reaches it.  Where versions meet, a block starts with a phi node
+ * setting a new version to the one from the block control came from.  Phis are placed at the iterated dominance
+ * frontier of a variable's assignments, and only where the variable is live.  Version 0 ({@code x.0}) is a variable's
+ * value before it is set.
+ *
+ * The passes never move an assignment or a use, they only replace uses with constants and remove assignments which
+ * are never used, so the versions of a variable are never needed at the same time: leaving SSA form just renames
+ * each version back to its variable and drops the phis.
+ */
+public class Ssa {
+
+    /**
+     * Put a graph into SSA form.
+     * @param graph  a graph, not in SSA form.
+     * @return the graph.
+     */
+    public static Graph build(Graph graph) {
+        List<Block> blocks = graph.blocks;
+        Map<Block, Integer> position = new HashMap<>();
+        for(int i = 0; i < blocks.size(); i++) position.put(blocks.get(i), i);
+        int[] idom = dominators(blocks, position);
+
+        // where each variable is set, and the dominance frontier of each block
+        Map<String, Set<Block>> setIn = new LinkedHashMap<>();
+        for(Block b : blocks) {
+            for(Tree<Token> s : b.code) {
+                String target = Graph.target(s);
+                if(target != null) setIn.computeIfAbsent(target, k -> new HashSet<>()).add(b);
+            }
+        }
+        Map<Block, Set<Block>> frontier = new HashMap<>();
+        for(Block b : blocks) frontier.put(b, new HashSet<>());
+        for(int i = 0; i < blocks.size(); i++) {
+            Block b = blocks.get(i);
+            if(b.predecessors.size() < 2) continue;
+            for(Block p : b.predecessors) {
+                for(int runner = position.get(p); runner != idom[i]; runner = idom[runner]) frontier.get(blocks.get(runner)).add(b);
+            }
+        }
+
+        // phis
+        Map<Block, Set<String>> live = graph.liveIn();
+        for(Map.Entry<String, Set<Block>> v : setIn.entrySet()) {
+            String name = v.getKey();
+            Deque<Block> work = new ArrayDeque<>(v.getValue());
+            Set<Block> placed = new HashSet<>();
+            while(!work.isEmpty()) {
+                for(Block f : frontier.get(work.pop())) {
+                    if(!live.get(f).contains(name) || !placed.add(f)) continue;
+                    f.phis.add(new Phi(name));
+                    if(!v.getValue().contains(f)) work.push(f);
+                }
+            }
+        }
+
+        // rename, going down the dominator tree
+        Map<Block, List<Block>> dominated = new HashMap<>();
+        for(int i = 1; i < blocks.size(); i++) dominated.computeIfAbsent(blocks.get(idom[i]), k -> new ArrayList<>()).add(blocks.get(i));
+        new Renamer(graph).rename(graph.entry, dominated);
+        return graph;
+    }
+
+    /**
+     * Take a graph out of SSA form.
+     * @param graph  a graph in SSA form.
+     * @return the graph.
+     */
+    public static Graph destroy(Graph graph) {
+        Map<String, String> variableOf = graph.variableOf;
+        for(Block b : graph.blocks) {
+            b.phis.clear();
+            for(int i = 0; i < b.code.size(); i++) {
+                Tree<Token> s = mapExpressions(b.code.get(i), e -> Graph.mapVariables(e, name -> variable(variableOf.get(name))));
+                String target = Graph.target(s);
+                b.code.set(i, (target == null) ? s : Graph.withTarget(s, variableOf.get(target)));
+            }
+            if(b.test != null) b.test = Graph.mapVariables(b.test, name -> variable(variableOf.get(name)));
+        }
+        variableOf.clear();
+        return graph;
+    }
+
+    // the immediate dominator of each block, by position in reverse postorder (Cooper, Harvey and Kennedy's method)
+    private static int[] dominators(List<Block> blocks, Map<Block, Integer> position) {
+        int[] idom = new int[blocks.size()];
+        Arrays.fill(idom, -1);
+        idom[0] = 0;
+        for(boolean changed = true; changed; ) {
+            changed = false;
+            for(int i = 1; i < blocks.size(); i++) {
+                int d = -1;
+                for(Block p : blocks.get(i).predecessors) {
+                    int q = position.get(p);
+                    if(idom[q] < 0) continue;       // not reached yet
+                    d = (d < 0) ? q : intersect(q, d, idom);
+                }
+                if(idom[i] != d) {
+                    idom[i] = d;
+                    changed = true;
+                }
+            }
+        }
+        return idom;
+    }
+
+    private static int intersect(int a, int b, int[] idom) {
+        while(a != b) {
+            while(a > b) a = idom[a];
+            while(b > a) b = idom[b];
+        }
+        return a;
+    }
+
+    private static class Renamer {
+        final Graph graph;
+        final Map<String, Integer> versions = new HashMap<>();
+        final Map<String, Deque<String>> reaching = new HashMap<>();
+
+        Renamer(Graph graph) {
+            this.graph = graph;
+        }
+
+        // walks the tree without recursion (it is as deep as the program is long)
+        void rename(Block entry, Map<Block, List<Block>> dominated) {
+            Deque<Block> work = new ArrayDeque<>();
+            Map<Block, List<String>> set = new HashMap<>();
+            work.push(entry);
+            while(!work.isEmpty()) {
+                Block b = work.pop();
+                List<String> names = set.get(b);
+                if(names != null) {     // done with b and the blocks it dominates
+                    for(String name : names) reaching.get(name).pop();
+                    continue;
+                }
+                set.put(b, names = new ArrayList<>());
+                work.push(b);
+                for(Block d : dominated.getOrDefault(b, new ArrayList<>())) work.push(d);
+                block(b, names);
+            }
+        }
+
+        void block(Block b, List<String> names) {
+            for(Phi phi : b.phis) {
+                phi.target = newVersion(phi.variable);
+                names.add(phi.variable);
+            }
+            for(int i = 0; i < b.code.size(); i++) {
+                Tree<Token> s = mapExpressions(b.code.get(i), e -> Graph.mapVariables(e, name -> variable(current(name))));
+                String target = Graph.target(s);
+                if(target != null) {
+                    s = Graph.withTarget(s, newVersion(target));
+                    names.add(target);
+                }
+                b.code.set(i, s);
+            }
+            if(b.test != null) b.test = Graph.mapVariables(b.test, name -> variable(current(name)));
+            for(Block s : b.successors()) {
+                for(Phi phi : s.phis) phi.args.put(b, current(phi.variable));
+            }
+        }
+
+        String newVersion(String name) {
+            String version = version(name, versions.merge(name, 1, Integer::sum));
+            reaching.computeIfAbsent(name, k -> new ArrayDeque<>()).push(version);
+            return version;
+        }
+
+        String current(String name) {
+            Deque<String> stack = reaching.get(name);
+            return (stack == null || stack.isEmpty()) ? version(name, 0) : stack.peek();
+        }
+
+        String version(String name, int n) {
+            String version = Graph.withSuffix(name, "." + n);
+            graph.variableOf.put(version, name);
+            return version;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Where the variables of a program are kept.
+ *
+ * Variables declared inside an if, loop or block, and temporaries made by the compiler (names beginning with '#'),
+ * are always locals.  The policy decides where the program's global variables - those declared at the
+ * top level - go.  (Whatever the policy, globals shared by the methods of a split program are static fields.)
+ */
+public enum Storage {
+
+    /** Globals are locals of main. */
+    LOCAL,
+
+    /** Globals are static fields of the generated class. */
+    STATIC,
+
+    /** As STATIC, but the globals used in a loop are copied to locals before it, and those changed are copied back after. */
+    HYBRID;
+
+    /** The policy used by {@link CodeGen}. */
+    public static Storage policy = LOCAL;
+
+    /**
+     * Find the globals to make static fields.
+     * @param program  AST for the program.
+     * @return names of the variables, none if the policy is LOCAL.
+     */
+    static Set<String> statics(Tree<Token> program) {
+        Set<String> statics = new LinkedHashSet<>();
+        if(policy != LOCAL) {
+            for(String name : Chunks.topLevelVariables(program)) {
+                if(!isTemporary(name)) statics.add(name);
+            }
+        }
+        return statics;
+    }
+
+    /** @return true for a variable made by the compiler. */
+    static boolean isTemporary(String name) {
+        return name.startsWith("#");
+    }
+
+    /**
+     * With the HYBRID policy, keep static variables in locals while a loop runs:
+     * {@code while ... end} becomes {@code { #x = x  while ... end  x = #x }} with x replaced by #x in the loop.
+     * (The extra block keeps #x local - and 'break' leaves the loop to just before the copy back.)
+     * @param tree  a statement or statement list.
+     * @param statics  the static variables.
+     * @return the statement with its outer loops changed, or unchanged if the policy isn't HYBRID.
+     */
+    static Tree<Token> cacheInLoops(Tree<Token> tree, Set<String> statics) {
+        if(policy != HYBRID || statics.isEmpty()) return tree;
+        return mapStatementsOutsideLoops(tree, s -> isLoop(s) ? cacheInLoop(s, statics) : s);
+    }
+
+    private static Tree<Token> cacheInLoop(Tree<Token> loop, Set<String> statics) {
+        Set<String> used = new LinkedHashSet<>();
+        Set<String> changed = new LinkedHashSet<>();
+        variables(loop, statics, used, changed);
+        if(used.isEmpty()) return loop;
+        Tree<Token> block = Tree.list(BLOCK);
+        for(String name : used) block.addChild(node(ASSIGN, variable(cached(name)), variable(name)));
+        block.addChild(rename(loop, used));
+        for(String name : changed) block.addChild(node(ASSIGN, variable(name), variable(cached(name))));
+        return block;
+    }
+
+    // the local holding a copy of a static (a '$' at the end still makes it a string)
+    private static String cached(String name) {
+        return "#" + name;
+    }
+
+    // find the statics a statement uses, and those it changes
+    private static void variables(Tree<Token> t, Set<String> statics, Set<String> used, Set<String> changed) {
+        if(t == null) return;
+        Token token = t.token();
+        if(token == IDENTIFIER || token == READ_INT || token == READ_STR) {
+            String name = t.toString();
+            if(statics.contains(name)) {
+                used.add(name);
+                if(token != IDENTIFIER) changed.add(name);
+            }
+            return;
+        }
+        if(token == ASSIGN || token == INCREMENT || token == DECREMENT) {
+            String name = t.child(0).toString();
+            if(statics.contains(name)) changed.add(name);
+        }
+        for(int i = 0; i < t.children(); i++) variables(t.child(i), statics, used, changed);
+    }
+
+    // replace the variables named with their cached copies
+    private static Tree<Token> rename(Tree<Token> t, Set<String> names) {
+        if(t == null) return null;
+        Token token = t.token();
+        if(token == IDENTIFIER || token == READ_INT || token == READ_STR) {
+            String name = t.toString();
+            return names.contains(name) ? Parse.nodes.leaf(token, cached(name)) : t;
+        }
+        return mapChildren(t, child -> rename(child, names));
+    }
+}
@@ -34,7 +34,9 @@ import sal.util.*;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.function.Supplier;
 import static sal.util.Fail.failEmpty;
+import static sal.util.Fail.failIf;
 import static sal.util.RE.*;
 
 /**
@@ -85,6 +87,7 @@ public enum Token implements Patterned {
 		LEN_STR("length"),		// string length
 		PRINT_STR,		// print a string
 		PRINT_INT,		// print an int
+		PRINT_REPEAT,	// print a string a number of times
 		READ_INT,		// read an int variable
 		READ_STR,		// read a string
 		CONCAT("concat"),// join strings
@@ -133,49 +136,69 @@ public enum Token implements Patterned {
     
     
     /** Initialise the lexer to take input from a BufferedReader via calls to scan.
+     *  All the input is tokenised here, into a {@link TokenBuffer}, which scan then steps through.
      *
      * @param inputReader
      */
     static public void startLexer(BufferedReader inputReader)
     {
-        lexer.input(inputReader);
+        buffer = TokenBuffer.read(inputReader, Token::newLexer);
+        whole = buffer.cursor();
+        source.set(whole);
+        recovering = false;
     }
 
-    /** Create the Lexer to be used by this program.
+    /** Create a Lexer for this language - each block of lines tokenised in parallel needs its own.
      *
     */
-    static private final Lexer<Token> lexer =   new Lexer(EOF, UNMATCHED, IDENTIFIER)
-                                                        .whiteSpace(WS, comment("//"));
+    static private Lexer<Token> newLexer() {
+        return new Lexer<Token>(EOF, UNMATCHED, IDENTIFIER).whiteSpace(WS, comment("//"));
+    }
+
+    /** The tokens of the current input. */
+    static private TokenBuffer<Token> buffer;
+
+    /** Cursor over all of the input (used by the thread which called startLexer). */
+    static private TokenBuffer<Token>.Cursor whole;
 
+    /** The cursor used by each thread - only threads parsing part of the input have their own. */
+    static private final ThreadLocal<TokenBuffer<Token>.Cursor> source = new ThreadLocal<>();
+
+    /** Give access to all the tokens of the current input, for example to look ahead.
+     *
+     * @return the token buffer set up by startLexer.
+     */
+    static public TokenBuffer<Token> buffer() { return buffer; }
 
     /** Static version of {@link Lexer#currentText()   Lexer.currentText()}}
      *
      * @return the text of the current token
      */
-    static public String currentText() { return lexer.currentText(); }
+    static public String currentText() { return source.get().currentText(); }
 
     /** Static version of {@link Lexer#currentToken()   Lexer.currentToken()}}
      *
      * @return the text of the current token
      */
-    static public Token currentToken() { return lexer.currentToken(); }
+    static public Token currentToken() { return source.get().currentToken(); }
 
     /** static variant of the {@link sal.util.Lexer#scan scan} method in {@link sal.util.Lexer Lexer}.
      *
      * @return the current token.
      *
-     * scan calls the default lexer and acts on error cases (IOException or unmatched input) by printing an error message.
+     * scan moves on to the next token and acts on error cases (IOException or unmatched input) by printing an error message.
      *
     */
     static public Token scan() {
-        if(lexer.scan() == UNMATCHED) {
+        TokenBuffer<Token>.Cursor cursor = source.get();
+        while(cursor.scan() == UNMATCHED) {
             // first check for I/O error
-            IOException err = lexer.ioException();
+            IOException err = cursor.ioException();
             if(err != null) {
                 parseError("I/O Exception: %s\n", err.getMessage());
             }
             else {
-                CharView buff = lexer.tokenInLine();
+                CharView buff = cursor.tokenInLine();
                 char errch = buff.charAt(0);
                 String errStr;
                 // an unmatched token is always 1 character long
@@ -185,9 +208,85 @@ public enum Token implements Patterned {
                     errStr = buff.toString();
                 parseError("Unexpected character \'" + errStr + "\'\n");
             }
-            scan(); // call recursively after error
+            // then carry on with the next token
         }
-        return lexer.currentToken();
+        return cursor.currentToken();
+    }
+
+    /** Thrown, in place of reporting an error, by a thread parsing part of the input. */
+    static private class PartFailed extends RuntimeException {
+        PartFailed() { super(null, null, false, false); }
+    }
+
+    /** Parse some of the tokens on this thread (several threads can do this at once).
+     *  Errors are not reported: the part is just abandoned, so the caller can parse the
+     *  whole input in the usual way to get proper error messages.
+     *
+     * @param start  first token.
+     * @param limit  tokens from here on are read as EOF.
+     * @param rule   parse rule to apply.
+     * @return the result of rule, or null if there was an error or the rule stopped before limit.
+     */
+    static public <R> R parsePart(int start, int limit, Supplier<R> rule) {
+        TokenBuffer<Token>.Cursor saved = source.get();
+        TokenBuffer<Token>.Cursor part = buffer.cursor(start, limit);
+        source.set(part);
+        try {
+            scan();
+            R result = rule.get();
+            return part.atLimit() ? result : null;
+        } catch (PartFailed e) {
+            return null;
+        } finally {
+            source.set(saved);
+        }
+    }
+
+    //////////// sets of tokens //////////////////////////////////////////////////////////////////
+    // There are fewer than 64 tokens, so a set of tokens fits in the bits of a long.
+    // Sets used by the parser are built once, as constants, so checking a token allocates nothing.
+
+    static {
+        failIf(values().length > Long.SIZE, "Too many tokens for a long token set");
+    }
+
+    /** The bit representing this token in a token set.
+     *
+     * @return a set containing just this token.
+     */
+    public long bit() { return 1L << ordinal(); }
+
+    /** Check whether this token is in a set.
+     *
+     * @param set  token set made by {@link #set(Token...) set}.
+     * @return true if the token is in the set.
+     */
+    public boolean isIn(long set) { return (set & bit()) != 0; }
+
+    /** Make a token set - best done once and kept as a constant.
+     *
+     * @param tokens tokens in the set.
+     * @return the set as a bit mask.
+     */
+    static public long set(Token... tokens) {
+        long set = 0;
+        for(Token t : tokens) set |= t.bit();
+        return set;
+    }
+
+    /** List the tokens in a set (only needed for error messages).
+     *
+     * @param set  token set.
+     * @return an array of the tokens in the set.
+     */
+    static public Token[] tokens(long set) {
+        Token[] all = values();
+        Token[] result = new Token[Long.bitCount(set)];
+        int n = 0;
+        for(Token t : all) {
+            if(t.isIn(set)) result[n++] = t;
+        }
+        return result;
     }
 
     /** Check that the current token is as expected.
@@ -200,13 +299,55 @@ public enum Token implements Patterned {
         return currentToken().isIn(tokens);
     }
 
+    /** As {@link #tokenIn(Token...)} but for a token set.
+     *
+     * @param set  token set.
+     * @return  true if the current token is in the set.
+     */
+    static public boolean tokenIn(long set) {
+        return currentToken().isIn(set);
+    }
+
     /** Skip any token in the given list.
      *
      * @param tokens  list of tokens, any one of which can be skipped.
      * @return true if a token was skipped, false otherwise.
      */
     static public boolean skipToken(Token... tokens) {
-        boolean check = currentToken().isIn(tokens);
+        return skipToken(set(tokens));
+    }
+
+    /** Skip the current token if it is in a token set.
+     *
+     * @param set  token set.
+     * @return true if a token was skipped, false otherwise.
+     */
+    static public boolean skipToken(long set) {
+        boolean check = currentToken().isIn(set);
+        if(check) scan();
+        return check;
+    }
+
+    /** Skip the current token if it is the one given.
+     *
+     * @param token  token which can be skipped.
+     * @return true if a token was skipped, false otherwise.
+     */
+    static public boolean skipToken(Token token) {
+        boolean check = currentToken() == token;
+        if(check) scan();
+        return check;
+    }
+
+    /** Skip the current token if it is either of the two given.
+     *
+     * @param t1  token which can be skipped.
+     * @param t2  another token which can be skipped.
+     * @return true if a token was skipped, false otherwise.
+     */
+    static public boolean skipToken(Token t1, Token t2) {
+        Token current = currentToken();
+        boolean check = current == t1 || current == t2;
         if(check) scan();
         return check;
     }
@@ -216,11 +357,75 @@ public enum Token implements Patterned {
      * @param tokens symbol to check for.
      */
     static public boolean mustBe(Token... tokens) {
-        boolean check = skipToken(tokens);
-        if(! check ) {
-            parseError("Found %s when expecting %s\n", lexer.currentText(), Patterned.expected(tokens));
+        return mustBe(set(tokens));
+    }
+
+    /** Check that the current token is the one specified - produce an error message if not found.
+     *
+     * @param token symbol to check for.
+     */
+    static public boolean mustBe(Token token) {
+        return skipToken(token) || missing(token.bit());
+    }
+
+    /** Check that the current token is either of those specified - produce an error message if not found.
+     *
+     * @param t1 symbol to check for.
+     * @param t2 alternative symbol.
+     */
+    static public boolean mustBe(Token t1, Token t2) {
+        return skipToken(t1, t2) || missing(t1.bit() | t2.bit());
+    }
+
+    /** Check that the current token is in a set - produce an error message if not found.
+     *
+     * @param set tokens to check for.
+     */
+    static public boolean mustBe(long set) {
+        return skipToken(set) || missing(set);
+    }
+
+    // report that none of the expected tokens was found
+    static private boolean missing(long expected) {
+        // only the first of a run of errors is reported - the rest are usually caused by it
+        if(! recovering) {
+            parseError("Found %s when expecting %s\n", currentText(), Patterned.expected(tokens(expected)));
+            errorLine = source.get().lineNumber();
         }
-        return check;
+        recovering = true;
+        return false;
+    }
+
+    /** After this many errors parsing gives up and skips to the end of the input. */
+    static public final int MAX_ERRORS = 20;
+
+    /** Set when an expected token was not found, cleared by {@link #synchronise synchronise}. */
+    static private boolean recovering = false;
+
+    /** Line of the error being recovered from. */
+    static private int errorLine = 0;
+
+    /** Check whether the parser has reported an error and not yet recovered from it.
+     *
+     * @return true if tokens should be skipped before parsing continues.
+     */
+    static public boolean recovering() { return recovering; }
+
+    /** Panic mode recovery: skip tokens until one is found from which parsing can sensibly continue.
+     *
+     * @param syncTokens tokens at which to stop - EOF always stops the skip, as does an
+     *                   identifier on a later line than the error (most likely an assignment).
+     *
+     * Once there have been too many errors everything up to the end of the input is skipped.
+     */
+    static public void synchronise(long syncTokens) {
+        boolean givenUp = ErrorStream.errorCount() > MAX_ERRORS;
+        for(Token t = currentToken(); t != EOF; t = scan()) {
+            if(givenUp) continue;
+            if(t.isIn(syncTokens)) break;
+            if(t == IDENTIFIER && source.get().lineNumber() > errorLine) break;
+        }
+        recovering = false;
     }
 
  
@@ -232,7 +437,15 @@ public enum Token implements Patterned {
      *  This method is placed here only because (usually) it is the wrong token which causes an error!
      */
     static public void parseError(String format, Object... args) {
-        ErrorStream.log(lexer.lineNumber(), lexer.tokenInLine(), format, args);
+        TokenBuffer<Token>.Cursor cursor = source.get();
+        if(cursor != whole) throw new PartFailed();
+        int errors = ErrorStream.errorCount();
+        if(errors < MAX_ERRORS) {
+            ErrorStream.log(cursor.lineNumber(), cursor.tokenInLine(), format, args);
+        } else if(errors == MAX_ERRORS) {
+            // count this as an error too, so later ones are neither printed nor announced
+            ErrorStream.log(cursor.lineNumber(), "Too many errors - the rest of the input is ignored\n");
+        }
     }
 }
 
@@ -17,6 +17,8 @@ package sal.small;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Arrays.asList;
 
@@ -81,6 +83,67 @@ import static java.util.Arrays.asList;
 
     }
 
+        ///////////////////////////////////////////////////////////////////////
+        // a leaf holding a primitive int, so later stages never reparse the text of a number
+        public static class IntLeaf<T extends Enum<T>> extends Tree<T> {
+
+            int value;
+
+            public IntLeaf(T token, int value) {
+                super(token);
+                this.value = value;
+            }
+
+            public int value() {
+                return this.value;
+            }
+
+            public boolean isLeaf() { return true; }
+
+            public String toString() {
+                return Integer.toString(value);
+            }
+        }
+
+        ///////////////////////////////////////////////////////////////////////
+        // a leaf holding the decoded value of a string literal - toString gives it back in quoted form
+        public static class StringLeaf<T extends Enum<T>> extends Leaf<T, String> {
+
+            public StringLeaf(T token, String value) {
+                super(token, value);
+            }
+
+            public String toString() {
+                return quote(value);
+            }
+
+            /** Put a string back into the quoted form used by SMALL and Jasmin source.
+             * @param s the decoded string.
+             * @return s in double quotes with special characters escaped.
+             */
+            public static String quote(String s) {
+                StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+                for(int i = 0; i < s.length(); i++) {
+                    char ch = s.charAt(i);
+                    switch(ch) {
+                        case '\n':  sb.append("\\n");  break;
+                        case '\t':  sb.append("\\t");  break;
+                        case '\r':  sb.append("\\r");  break;
+                        case '\b':  sb.append("\\b");  break;
+                        case '\f':  sb.append("\\f");  break;
+                        case '"':   sb.append("\\\"");  break;
+                        case '\\':  sb.append("\\\\"); break;
+                        default:
+                            if(ch < ' ' || ch > '~')
+                                sb.append(String.format("\\u%04x", (int) ch));
+                            else
+                                sb.append(ch);
+                    }
+                }
+                return sb.append('"').toString();
+            }
+        }
+
         ////////////////////////////////////////////////////////////////////
         public static class Branch<T extends Enum<T>>  extends Tree<T> {
 
@@ -116,10 +179,86 @@ import static java.util.Arrays.asList;
 
         }
 
+    ///////////////////////////////////////////////////////////////////////
+    // Factories for expression nodes. The plain factory just allocates; Shared hash-conses.
+
+    public static class Factory<T extends Enum<T>> {
+
+        public Tree<T> leaf(T t, Object value) { return Tree.leaf(t, value); }
+
+        public Tree<T> leaf(T t, int value) { return Tree.leaf(t, value); }
+
+        public Tree<T> stringLeaf(T t, String value) { return Tree.stringLeaf(t, value); }
+
+        public Tree<T> list(T token, Tree<T>... nodes) { return Tree.list(token, nodes); }
+
+        /** Forget any nodes remembered - call when a compilation is finished. */
+        public void clear() { }
+    }
+
+    /** A hash-consing factory: structurally equal subtrees are built once and the same instance is returned
+     * each time, so repeated subexpressions can be recognised by identity ( == ).
+     * Nodes from this factory are shared and must never be changed (no addChild, setToken etc.).
+     * The table is safe to use from several threads and is meant to last one compilation.
+     */
+    public static class Shared<T extends Enum<T>> extends Factory<T> {
+
+        // key is the token followed by the leaf value or the (already canonical) children
+        private final Map<List<Object>, Tree<T>> table = new ConcurrentHashMap<>();
+
+        public Tree<T> leaf(T t, Object value) {
+            return table.computeIfAbsent(asList(t, value), k -> Tree.leaf(t, value));
+        }
+
+        public Tree<T> leaf(T t, int value) {
+            return table.computeIfAbsent(asList(t, value), k -> Tree.leaf(t, value));
+        }
+
+        public Tree<T> stringLeaf(T t, String value) {
+            return table.computeIfAbsent(asList(t, value, STRING_KEY), k -> Tree.stringLeaf(t, value));
+        }
+
+        public Tree<T> list(T token, Tree<T>... nodes) {
+            Object[] key = new Object[nodes.length + 1];
+            key[0] = token;
+            System.arraycopy(nodes, 0, key, 1, nodes.length);
+            return table.computeIfAbsent(asList(key), k -> Tree.list(token, nodes));
+        }
+
+        /** Return the canonical instance of a tree built elsewhere (e.g. by an optimisation pass).
+         * @param tree any expression tree.
+         * @return a structurally equal tree from this table.
+         */
+        public Tree<T> intern(Tree<T> tree) {
+            if(tree == null) return null;
+            if(tree instanceof IntLeaf) return leaf(tree.token(), ((IntLeaf<T>) tree).value());
+            if(tree instanceof StringLeaf) return stringLeaf(tree.token(), ((StringLeaf<T>) tree).value());
+            if(tree.isLeaf()) return leaf(tree.token(), ((Leaf<T, ?>) tree).value());
+            int kids = tree.children();
+            Tree<T>[] nodes = new Tree[kids];
+            for(int i = 0; i < kids; i++) nodes[i] = intern(tree.child(i));
+            return list(tree.token(), nodes);
+        }
+
+        public int size() { return table.size(); }
+
+        public void clear() { table.clear(); }
+
+        private static final Object STRING_KEY = new Object();   // keeps string literals apart from other leaves
+    }
+
     public static <T extends Enum<T>, V>  Tree<T>  leaf(T t, V value) {
         return new Leaf<T, V>(t, value);
     }
     
+    public static <T extends Enum<T> >  Tree<T>  leaf(T t, int value) {
+        return new IntLeaf<T>(t, value);
+    }
+
+    public static <T extends Enum<T> >  Tree<T>  stringLeaf(T t, String value) {
+        return new StringLeaf<T>(t, value);
+    }
+
     public static <T extends Enum<T> >  Tree<T>  leaf(T t) {
         return new Leaf<T, Object>(t, null);
     }
@@ -0,0 +1,145 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.small;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static sal.small.Optimise.*;
+import static sal.small.Token.*;
+
+/** Unrolling of counted while loops.
+ *
+ * A counted loop compares a variable with a constant ({@code while i > 0}, {@code while i < 10}...), and the only
+ * change to the variable is one step of a constant in the body's own statements ({@code i = i - 1}).
+ * If the loop follows an assignment of a constant to the variable, the number of times round is known:
+ * a loop run at most {@link #maxTrips} times is replaced by that many copies of its body (a loop run no times is removed).
+ * Otherwise the body is repeated {@link #factor} times in a loop whose test checks there are that many trips left,
+ * followed by the original loop for the rest:
+ * {@code while i > 0 do B end} becomes {@code while i > 3 do B B B B end  while i > 0 do B end}.
+ * A loop whose body has a continue is left alone (each copy would need its own place to continue to),
+ * as is one with a break, unless it is unrolled completely (the copies are then in a {@code do ... until 1}).
+ * Nothing is unrolled if the copies would make more than {@link #budget} bytes of code (as estimated by {@link Chunks#codeSize}).
+ */
+public class Unroll {
+
+    /** Loops run at most this many times are unrolled completely. */
+    public static int maxTrips = 8;
+
+    /** Copies of the body in a partly unrolled loop (1 or less for none). */
+    public static int factor = 4;
+
+    /** Most bytes of code an unrolled loop's copies of its body may have. */
+    public static int budget = 400;
+
+    /**
+     * Unroll the counted loops of a program.
+     * @param tree  AST for the program.
+     * @return the changed AST.
+     */
+    public static Tree<Token> program(Tree<Token> tree) {
+        return mapStatements(tree, (s, previous) -> (s.token() == WHILE) ? loop(s, previous) : s);
+    }
+
+    // unroll a while loop (whose inner loops are done) if it is counted
+    private static Tree<Token> loop(Tree<Token> loop, Tree<Token> previous) {
+        Tree<Token> test = loop.child(0);
+        Tree<Token> body = loop.child(1);
+        if(test == null || Fold.compare(test.token(), 0, 0) == null || jumpsOut(body, CONTINUE)) return loop;
+        // the variable and constant compared - with the variable on the left
+        Token compare = test.token();
+        Tree<Token> var = test.child(0);
+        Tree<Token> limit = test.child(1);
+        if(isNumber(var)) {
+            var = test.child(1);
+            limit = test.child(0);
+            compare = reversed(compare);
+        }
+        if(!isVariable(var) || !isNumber(limit) || isStringName(var)) return loop;
+        Integer step = step(body, var.toString());
+        if(step == null) return loop;
+        int bodySize = Chunks.codeSize(body);
+        boolean breaks = jumpsOut(body, BREAK);
+
+        Integer start = initialValue(previous, var.toString());
+        if(start != null) {
+            int trips = trips(compare, start, intValue(limit), step);
+            if(trips <= maxTrips && trips * bodySize <= budget) {
+                Tree<Token> copies = copies(body, trips);
+                return breaks ? Tree.list(UNTIL, number(1), copies) : Tree.list(BLOCK, copies);     // a scope, as the loop had
+            }
+        }
+        if(breaks || factor <= 1 || factor * bodySize > budget) return loop;     // a break would skip the rest of the loop
+        Tree<Token> guard = guard(compare, var, intValue(limit), step);
+        if(guard == null) return loop;
+        return Tree.list(STATEMENTLIST, Tree.list(WHILE, guard, copies(body, factor)), loop);
+    }
+
+    // the comparison with its operands swapped
+    private static Token reversed(Token compare) {
+        switch(compare) {
+            case LT:    return GT;
+            case LE:    return GE;
+            case GT:    return LT;
+            case GE:    return LE;
+            default:    return compare;     // == !=
+        }
+    }
+
+    // the step made to a variable by the body of its loop, or null unless that is the only change to it
+    private static Integer step(Tree<Token> body, String name) {
+        Integer step = null;
+        Set<String> changed = new HashSet<>();
+        for(Tree<Token> s : body.allChildren()) {
+            if(step == null && name.equals(steppedVariable(s))) {
+                step = stepOf(s);
+            } else {
+                assignedIn(s, changed);
+            }
+        }
+        return (step == null || step == 0 || changed.contains(name)) ? null : step;
+    }
+
+    // the constant assigned to a variable by a statement, or null
+    private static Integer initialValue(Tree<Token> s, String name) {
+        if(s == null || s.token() != ASSIGN || !s.child(0).toString().equals(name) || !isNumber(s.child(1))) return null;
+        return intValue(s.child(1));
+    }
+
+    // the number of times round a loop, or maxTrips + 1 if more than that
+    private static int trips(Token compare, int start, int limit, int step) {
+        int trips = 0;
+        for(int i = start; Fold.compare(compare, i, limit) == 1 && trips <= maxTrips; i += step) trips++;
+        return trips;
+    }
+
+    // a test true only if the loop's test will be true for the next factor times round, or null if there isn't one
+    private static Tree<Token> guard(Token compare, Tree<Token> var, int limit, int step) {
+        boolean up = (compare == LT || compare == LE) && step > 0;
+        boolean down = (compare == GT || compare == GE) && step < 0;
+        if(!up && !down) return null;
+        long last = limit - (long) (factor - 1) * step;       // var + (factor - 1) * step must pass the test
+        if(last < Integer.MIN_VALUE || last > Integer.MAX_VALUE) return null;
+        return node(compare, var, number((int) last));
+    }
+
+    // a statement list of n copies of a loop's body
+    private static Tree<Token> copies(Tree<Token> body, int n) {
+        Tree<Token> list = Tree.list(STATEMENTLIST);
+        for(int i = 0; i < n; i++) list.addChild(body);
+        return list;
+    }
+}
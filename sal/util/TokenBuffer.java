@@ -0,0 +1,218 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package sal.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/** All the tokens of an input, found by a {@link Lexer} before parsing starts.
+ *
+ * Since a token never spans lines, large inputs are split into blocks of lines which are
+ * tokenised in parallel, each by its own Lexer.  A {@link Cursor} then steps through the tokens
+ * (or through part of them) in the same way as {@link Lexer#scan()}.
+ *
+ * @param <T> the token enum.
+ */
+public class TokenBuffer<T extends Enum<T> & Patterned> {
+
+    /** Inputs with more lines than this are tokenised in parallel. */
+    public static int parallelLines = 20000;
+
+    protected final T eof;
+    protected final T unmatched;
+
+    /** The input, by line (without line ends). */
+    protected final String[] lines;
+
+    /** Set if the input could not all be read - reported as an UNMATCHED token at the end. */
+    protected IOException ioException;
+
+    // for each token: what it is, its line (counting from 1) and where it is in that line
+    protected T[]   tokens;
+    protected int[] line;
+    protected int[] begin;
+    protected int[] end;
+    protected int   size = 0;
+
+    @SuppressWarnings("unchecked")
+    protected TokenBuffer(Lexer<T> lexer, String[] lines, int capacity) {
+        this.eof = lexer.EOF;
+        this.unmatched = lexer.UNMATCHED;
+        this.lines = lines;
+        this.tokens = (T[]) new Enum[capacity];
+        this.line = new int[capacity];
+        this.begin = new int[capacity];
+        this.end = new int[capacity];
+    }
+
+    /** Read all the input and tokenise it.
+     *
+     * @param reader  where the input comes from.
+     * @param lexers  makes a new Lexer each time it is called - one is needed for each block of lines.
+     * @return  the tokens found.
+     */
+    public static <T extends Enum<T> & Patterned> TokenBuffer<T> read(BufferedReader reader, Supplier<Lexer<T>> lexers) {
+        List<String> input = new ArrayList<>();
+        IOException ioException = null;
+        try {
+            for(String s = reader.readLine(); s != null; s = reader.readLine()) input.add(s);
+        } catch (IOException ioerr) {
+            ioException = ioerr;
+        }
+        String[] lines = input.toArray(new String[0]);
+
+        Lexer<T> lexer = lexers.get();
+        TokenBuffer<T> all = new TokenBuffer<>(lexer, lines, Math.max(16, lines.length * 4));
+        int blocks = Math.min(lines.length / parallelLines, 4 * Runtime.getRuntime().availableProcessors());
+        if(blocks <= 1) {
+            all.tokenise(lexer, 0, lines.length);
+        } else {
+            int blockSize = (lines.length + blocks - 1) / blocks;
+            TokenBuffer<T>[] parts = IntStream.range(0, blocks).parallel().mapToObj(b -> {
+                        int first = b * blockSize;
+                        int last = Math.min(lines.length, first + blockSize);
+                        TokenBuffer<T> part = new TokenBuffer<>(lexer, lines, (last - first) * 4 + 16);
+                        part.tokenise(lexers.get(), first, last);
+                        return part;
+                    }).toArray(TokenBuffer[]::new);
+            for(TokenBuffer<T> part : parts) all.append(part);
+        }
+        if(ioException != null) {
+            all.ioException = ioException;
+            all.add(all.unmatched, lines.length, -1, -1);   // begin of -1 marks the I/O error
+        }
+        return all;
+    }
+
+    // tokenise lines first (inclusive) to last (exclusive) of the input
+    private void tokenise(Lexer<T> lexer, int first, int last) {
+        if(first >= last) return;
+        lexer.input(String.join("\n", Arrays.asList(lines).subList(first, last)));
+        for(T t = lexer.scan(); t != eof; t = lexer.scan()) {
+            CharView text = lexer.tokenInLine();
+            add(t, first + lexer.lineNumber(), text.getBeginIndex(), text.getEndIndex());
+        }
+    }
+
+    private void add(T token, int lineNumber, int from, int to) {
+        if(size == tokens.length) grow(size + 1);
+        tokens[size] = token;
+        line[size] = lineNumber;
+        begin[size] = from;
+        end[size] = to;
+        size++;
+    }
+
+    private void append(TokenBuffer<T> part) {
+        grow(size + part.size);
+        System.arraycopy(part.tokens, 0, tokens, size, part.size);
+        System.arraycopy(part.line,   0, line,   size, part.size);
+        System.arraycopy(part.begin,  0, begin,  size, part.size);
+        System.arraycopy(part.end,    0, end,    size, part.size);
+        size += part.size;
+    }
+
+    private void grow(int needed) {
+        if(needed <= tokens.length) return;
+        int capacity = Math.max(needed, tokens.length * 2);
+        tokens = Arrays.copyOf(tokens, capacity);
+        line   = Arrays.copyOf(line,   capacity);
+        begin  = Arrays.copyOf(begin,  capacity);
+        end    = Arrays.copyOf(end,    capacity);
+    }
+
+    /** @return the number of tokens (not counting the end of input). */
+    public int size() { return size; }
+
+    /** @param index position of a token.
+     * @return the token at that position - EOF beyond the end.
+     */
+    public T token(int index) { return (index < size) ? tokens[index] : eof; }
+
+    /** @return a cursor over all the tokens. */
+    public Cursor cursor() { return new Cursor(0, size); }
+
+    /** @param start first token.
+     * @param limit  tokens from here on are read as EOF.
+     * @return a cursor over part of the tokens.
+     */
+    public Cursor cursor(int start, int limit) { return new Cursor(start, limit); }
+
+
+    /** Steps through the tokens, giving the same information as a {@link Lexer}.
+     *  Each cursor has its own position so several can be used at once (e.g. by different threads).
+     */
+    public class Cursor {
+
+        protected final int start;
+        protected final int limit;
+        protected int position;
+
+        protected Cursor(int start, int limit) {
+            this.start = start;
+            this.limit = limit;
+            this.position = start - 1;   // as for a Lexer, nothing has been scanned yet
+        }
+
+        /** Move on to the next token.
+         * @return  the next token.
+         */
+        public T scan() {
+            if(position < limit) position++;
+            return currentToken();
+        }
+
+        /** @return The current token. */
+        public T currentToken() {
+            return (position < start) ? unmatched
+                 : (position < limit) ? tokens[position]
+                 : eof;
+        }
+
+        /** @return true once the cursor has passed its last token. */
+        public boolean atLimit() { return position >= limit; }
+
+        private boolean inRange() { return position >= start && position < limit && begin[position] >= 0; }
+
+        /** @return A string containing the current token. */
+        public String currentText() {
+            return inRange() ? lines[line[position] - 1].substring(begin[position], end[position]) : "";
+        }
+
+        /** @return The line number of the current token. */
+        public int lineNumber() {
+            if(position < start) return 0;
+            int at = Math.min(position, limit) - 1;
+            return (position < limit) ? line[position] : (at >= 0) ? line[at] : 0;
+        }
+
+        /** @return  A view of the line containing the current token, indicating the token's limits. */
+        public CharView tokenInLine() {
+            return inRange() ? new CharView(lines[line[position] - 1], begin[position], end[position])
+                             : new CharView("", 0, 0);
+        }
+
+        /** @return  the I/O error if the current token represents one, otherwise null. */
+        public IOException ioException() {
+            return (position >= start && position < limit && begin[position] < 0) ? ioException : null;
+        }
+    }
+}